@@ -0,0 +1,296 @@
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
+
+import bench.StackFixtures;
+
+/**
+ * Builds the parts of the broadcast stack that are measured by the benchmarks.
+ *
+ * JMH does not accept benchmarks in the default package and classes of the
+ * default package cannot be imported, so the benchmarks in package bench see
+ * this class as StackFixtures, where the fixtures are documented.
+ */
+public class BenchFixtures implements StackFixtures {
+
+	/**
+	 * Message as it is broadcast by process 1 of n, depending on half of the
+	 * other processes.
+	 *
+	 * @param n     - Number of processes
+	 * @param count - Number of messages in the batch, 1 for a single message
+	 */
+	private static Message sampleMessage(int n, int count) throws IOException {
+		InetAddress localhost = InetAddress.getLoopbackAddress();
+		ArrayList<VectorClock> clocks = new ArrayList<VectorClock>();
+		for (int i = 0; i < count; i++) {
+			VectorClock clock = new VectorClock(n);
+			for (int j = 1; j < n; j += 2)
+				clock.set(j, 1000 + i);
+			clocks.add(clock);
+		}
+
+		Message m = new Message("12345", 11002, localhost, 11001, localhost, 12345, false, true, 1, null,
+				clocks.get(0));
+		if (count > 1)
+			m.setBatch(clocks);
+		return m;
+	}
+
+	@Override
+	public IntSupplier encoder(String codec, int n, int count) throws IOException {
+		MessageCodec messageCodec = codec.equals("serialized") ? new SerializedMessageCodec()
+				: new BinaryMessageCodec();
+		Message m = sampleMessage(n, count);
+		ByteBuffer out = ByteBuffer.allocateDirect(65507);
+
+		return () -> {
+			out.clear();
+			try {
+				messageCodec.encode(m, out);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			return out.position();
+		};
+	}
+
+	@Override
+	public Supplier<Object> decoder(String codec, int n, int count) throws IOException {
+		MessageCodec messageCodec = codec.equals("serialized") ? new SerializedMessageCodec()
+				: new BinaryMessageCodec();
+		ByteBuffer encoded = ByteBuffer.allocate(65507);
+		messageCodec.encode(sampleMessage(n, count), encoded);
+		encoded.flip();
+
+		return () -> {
+			try {
+				return messageCodec.decode(encoded.duplicate());
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		};
+	}
+
+	@Override
+	public IntSupplier relayer(String mode, int n, int count) throws IOException {
+		BinaryMessageCodec codec = new BinaryMessageCodec();
+		ByteBuffer received = ByteBuffer.allocateDirect(65507);
+		codec.encode(sampleMessage(n, count), received);
+		received.flip();
+		BufferPool pool = new BufferPool(1, 1);
+		boolean framed = mode.equals("frame");
+
+		InetAddress localhost = InetAddress.getLoopbackAddress();
+		ArrayList<InetSocketAddress> destinations = new ArrayList<InetSocketAddress>();
+		for (int i = 0; i < n; i++)
+			destinations.add(new InetSocketAddress(localhost, 11001 + i));
+		ByteBuffer out = ByteBuffer.allocateDirect(65507);
+
+		return () -> {
+			try {
+				ByteBuffer in = received.duplicate();
+				int bodyStart = framed ? BinaryMessageCodec.bodyStart(in) : -1;
+				Message m = codec.decode(in);
+				Frame frame = framed ? new Frame(pool, in, bodyStart, in.position()) : null;
+
+				int size = 0;
+				for (InetSocketAddress destination : destinations) {
+					Message relay = new Message(m.getM(), destination.getPort(), destination.getAddress(), 11002,
+							localhost, m.getId(), false, false, m.getSender(), null, m.getVectorClock());
+					relay.copyBatch(m);
+					out.clear();
+					if (framed)
+						codec.encodeRelay(relay, frame, out);
+					else
+						codec.encode(relay, out);
+					size += out.position();
+				}
+				return size;
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		};
+	}
+
+	/**
+	 * Process that is not connected to any other one: its peers are ports that
+	 * nobody listens to.
+	 *
+	 * @param n - Number of processes in the membership
+	 */
+	private static Process standalone(int n) throws IOException {
+		InetAddress localhost = InetAddress.getLoopbackAddress();
+		Process p = new Process(localhost, freePort(), 1, 0, n);
+
+		ArrayList<InetSocketAddress> processes = new ArrayList<InetSocketAddress>();
+		for (int i = 0; i < n; i++)
+			processes.add(new InetSocketAddress(localhost, freePort()));
+		p.setProcesses(processes);
+		for (int i = 1; i < n; i += 2)
+			p.setIsAffected(i, true);
+		return p;
+	}
+
+	@Override
+	public IntSupplier ackCounter(int n, int ids, int ackers) throws IOException {
+		Process p = standalone(n);
+		Message[] messages = new Message[ids];
+		for (int id = 1; id <= ids; id++) {
+			int sender = 1 + id % n;
+			for (int acker = 1; acker <= ackers; acker++)
+				p.getAckTable().record(sender, id, acker);
+			messages[id - 1] = new Message("", 0, null, 0, null, id, false, true, sender, null, null);
+		}
+
+		int mask = ids - 1;
+		int[] next = new int[1];
+		return () -> p.msgAckCount(messages[next[0]++ & mask]);
+	}
+
+	@Override
+	public IntUnaryOperator fifoDeliverer(int n) throws IOException {
+		Process p = standalone(n);
+		FIFOBroadcast fifo = new FIFOBroadcast(p);
+		FIFOBroadcast.CanDeliver canDeliver = fifo.new CanDeliver();
+		VectorClock clock = new VectorClock(n);
+
+		return id -> {
+			canDeliver.addDeliverMsg(new Message(Integer.toString(id + 1), 0, null, 0, null, id + 1, false, true, 2,
+					null, clock));
+			canDeliver.deliver();
+			return id + 1;
+		};
+	}
+
+	@Override
+	public BooleanSupplier lcbChecker(int n, boolean deliverable) throws IOException {
+		Process p = standalone(n);
+		VectorClock processVC = p.getVectorClock();
+		VectorClock messageVC = new VectorClock(n);
+		for (int i = 0; i < n; i++) {
+			processVC.set(i, 500);
+			messageVC.set(i, i % 2 == 1 ? 500 : 0);
+		}
+		if (!deliverable)
+			messageVC.set(n - 1, 501);
+		messageVC.set(1, 0);
+
+		Message m = new Message("501", 0, null, 0, null, 501, false, true, 2, null, messageVC);
+		return () -> canLCBdeliver(p, m);
+	}
+
+	/**
+	 * Check message against the vector clock of the process directly, as it was
+	 * done before pending messages counted their dependencies.
+	 *
+	 * @return True if the message is the next one of its sender and every
+	 *         message in its vector clock has been delivered.
+	 */
+	private static boolean canLCBdeliver(Process p, Message message) {
+		VectorClock processVC = p.getVectorClock();
+		if (processVC.get(message.getSender() - 1) != message.getId() - 1)
+			return false;
+		return processVC.dominates(message.getVectorClock());
+	}
+
+	@Override
+	public IntSupplier causalBacklog(int n, int size) throws IOException {
+		Process p = standalone(n);
+		LocalizedCausalBroadcast lcb = p.getLCB();
+		int senders = n - 1;
+
+		return () -> {
+			VectorClock start = new VectorClock(p.getVectorClock());
+			Message[] backlog = new Message[size];
+			for (int i = 0; i < size; i++) {
+				int sender = n - i % senders;
+				int id = start.get(sender - 1) + 1 + i / senders;
+				VectorClock clock = new VectorClock(n);
+				if (i > 0)
+					clock.set(backlog[i - 1].getSender() - 1, backlog[i - 1].getId());
+				backlog[i] = new Message(Integer.toString(id), 0, null, 0, null, id, false, true, sender, null, clock);
+				for (int acker = 1; acker <= n; acker++)
+					p.getAckTable().record(sender, id, acker);
+			}
+
+			for (int i = size - 1; i >= 0; i--)
+				lcb.deliver(backlog[i]);
+			Message last = backlog[size - 1];
+			while (p.getVectorClock().get(last.getSender() - 1) < last.getId())
+				LockSupport.parkNanos(1000);
+			return last.getId();
+		};
+	}
+
+	/**
+	 * Cluster of processes of the stack, see StackFixtures.Cluster.
+	 */
+	private static class LoopbackCluster implements StackFixtures.Cluster {
+		private ArrayList<Process> processes = new ArrayList<Process>();
+
+		private LoopbackCluster(int n) throws IOException {
+			InetAddress localhost = InetAddress.getLoopbackAddress();
+			ArrayList<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+			for (int i = 0; i < n; i++)
+				addresses.add(new InetSocketAddress(localhost, freePort()));
+
+			for (int i = 0; i < n; i++) {
+				Process p = new Process(localhost, addresses.get(i).getPort(), i + 1, 0, n);
+				if (i > 0)
+					p.setIsAffected(i - 1, true);
+				p.setProcesses(addresses);
+				processes.add(p);
+			}
+		}
+
+		@Override
+		public int broadcastAndWait(int count) {
+			Process sender = processes.get(0);
+			int target = sender.getVectorClock().get(0) + count;
+			int batchSize = sender.getLCB().getBatchSize();
+
+			try {
+				int sent = 0;
+				while (sent < count) {
+					int granted = sender.getFlowControl().acquire(Math.min(batchSize, count - sent));
+					sender.broadcast(granted);
+					sent += granted;
+				}
+			} catch (IOException | InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+
+			for (Process p : processes) {
+				while (p.getVectorClock().get(0) < target)
+					LockSupport.parkNanos(20000);
+			}
+			return target;
+		}
+
+		@Override
+		public void close() {
+			for (Process p : processes)
+				p.shutdown();
+		}
+	}
+
+	@Override
+	public StackFixtures.Cluster cluster(int n) throws IOException {
+		return new LoopbackCluster(n);
+	}
+
+	private static int freePort() throws IOException {
+		try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+			return socket.getLocalPort();
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Localized causal delivery of a backlog of pending messages, such as the
+ * one a process has when a partition heals: every message depends on the
+ * one before, which is the last to arrive.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CausalBenchmark {
+
+	@Param({ "5", "100" })
+	public int processes;
+
+	@Param({ "1000", "20000" })
+	public int backlog;
+
+	private IntSupplier backlogDeliverer;
+
+	@Setup
+	public void setup() throws IOException {
+		backlogDeliverer = Fixtures.STACK.causalBacklog(processes, backlog);
+	}
+
+	@Benchmark
+	public int deliverBacklog() {
+		return backlogDeliverer.getAsInt();
+	}
+}
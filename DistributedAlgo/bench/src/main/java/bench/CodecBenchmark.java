@@ -0,0 +1,58 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding and decoding of a broadcast message, alone or in a batch.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+	@Param({ "binary", "serialized" })
+	public String codec;
+
+	@Param({ "5", "100" })
+	public int processes;
+
+	@Param({ "1", "16" })
+	public int batch;
+
+	private IntSupplier encoder;
+	private Supplier<Object> decoder;
+
+	@Setup
+	public void setup() throws IOException {
+		encoder = Fixtures.STACK.encoder(codec, processes, batch);
+		decoder = Fixtures.STACK.decoder(codec, processes, batch);
+	}
+
+	@Benchmark
+	public int encode() {
+		return encoder.getAsInt();
+	}
+
+	@Benchmark
+	public Object decode() {
+		return decoder.get();
+	}
+}
@@ -0,0 +1,22 @@
+package bench;
+
+/**
+ * Access to BenchFixtures, which lives in the default package like the rest of
+ * the stack and therefore cannot be imported. It is created once by name, every
+ * fixture is then reached through StackFixtures.
+ */
+final class Fixtures {
+
+	static final StackFixtures STACK = create();
+
+	private Fixtures() {
+	}
+
+	private static StackFixtures create() {
+		try {
+			return (StackFixtures) Class.forName("BenchFixtures").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Failed to create the fixtures", e);
+		}
+	}
+}
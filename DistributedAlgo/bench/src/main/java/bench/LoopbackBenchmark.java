@@ -0,0 +1,67 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * n processes in this JVM connected through loopback sockets. Process 1
+ * broadcasts and every process has to deliver.
+ *
+ * latency reports the time from one broadcast until its delivery by every
+ * process, with its percentiles (p0.50, p0.99, ...). throughput reports the
+ * messages delivered by every process per second while WINDOW messages are in
+ * flight. Batching is configured as for a process, with -Dda.batch passed
+ * through -jvmArgsAppend.
+ */
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoopbackBenchmark {
+	static final int WINDOW = 256;
+
+	@Param({ "3", "5" })
+	public int processes;
+
+	private StackFixtures.Cluster cluster;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		cluster = Fixtures.STACK.cluster(processes);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		cluster.close();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public int latency() {
+		return cluster.broadcastAndWait(1);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(WINDOW)
+	public int throughput() {
+		return cluster.broadcastAndWait(WINDOW);
+	}
+}
@@ -0,0 +1,51 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Relay of a received message to every process: encoding every relay again,
+ * or writing its header before the body of the received datagram (see Frame).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RelayBenchmark {
+
+	@Param({ "encode", "frame" })
+	public String mode;
+
+	@Param({ "5", "100" })
+	public int processes;
+
+	@Param({ "1", "16" })
+	public int batch;
+
+	private IntSupplier relayer;
+
+	@Setup
+	public void setup() throws IOException {
+		relayer = Fixtures.STACK.relayer(mode, processes, batch);
+	}
+
+	@Benchmark
+	public int relay() {
+		return relayer.getAsInt();
+	}
+}
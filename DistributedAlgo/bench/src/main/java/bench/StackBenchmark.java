@@ -0,0 +1,73 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.IntUnaryOperator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The checks done for every received message on its way to delivery:
+ * msgAckCount() for URB and CanDeliver.deliver() for FIFO. canLCBdeliver() is
+ * the localized causal check against the whole vector clock, which pending
+ * messages replace by a count of their dependencies (see CausalBenchmark).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StackBenchmark {
+
+	@Param({ "5", "100" })
+	public int processes;
+
+	private IntSupplier ackCounter;
+	private IntUnaryOperator fifoDeliverer;
+	private BooleanSupplier deliverable;
+	private BooleanSupplier blocked;
+
+	private int lastDelivered = 0;
+
+	@Setup
+	public void setup() throws IOException {
+		ackCounter = Fixtures.STACK.ackCounter(processes, 1024, processes / 2 + 1);
+		fifoDeliverer = Fixtures.STACK.fifoDeliverer(processes);
+		deliverable = Fixtures.STACK.lcbChecker(processes, true);
+		blocked = Fixtures.STACK.lcbChecker(processes, false);
+	}
+
+	@Benchmark
+	public int msgAckCount() {
+		return ackCounter.getAsInt();
+	}
+
+	@Benchmark
+	public int fifoDeliver() {
+		lastDelivered = fifoDeliverer.applyAsInt(lastDelivered);
+		return lastDelivered;
+	}
+
+	@Benchmark
+	public boolean canLCBdeliver() {
+		return deliverable.getAsBoolean();
+	}
+
+	@Benchmark
+	public boolean canLCBdeliverBlocked() {
+		return blocked.getAsBoolean();
+	}
+}
@@ -0,0 +1,105 @@
+package bench;
+
+import java.io.IOException;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
+
+/**
+ * Parts of the broadcast stack that are measured by the benchmarks.
+ *
+ * The stack lives in the default package, which cannot be imported, so it is
+ * implemented there (BenchFixtures) and every fixture is handed out as a
+ * java.util.function interface. Get the implementation from Fixtures.
+ */
+public interface StackFixtures {
+
+	/**
+	 * @param codec - "binary" or "serialized"
+	 * @param n     - Number of processes
+	 * @param count - Number of messages in the batch
+	 * @return Encodes a message and returns its size in bytes.
+	 */
+	IntSupplier encoder(String codec, int n, int count) throws IOException;
+
+	/**
+	 * @param codec - "binary" or "serialized"
+	 * @param n     - Number of processes
+	 * @param count - Number of messages in the batch
+	 * @return Decodes an encoded message.
+	 */
+	Supplier<Object> decoder(String codec, int n, int count) throws IOException;
+
+	/**
+	 * @param mode  - "encode" to encode every relay, "frame" to forward the body
+	 *              of the received datagram
+	 * @param n     - Number of processes
+	 * @param count - Number of messages in the batch
+	 * @return Decodes a received message and writes its relay to each of the n
+	 *         processes, as a worker and the send pipeline do. Returns the bytes
+	 *         written.
+	 */
+	IntSupplier relayer(String mode, int n, int count) throws IOException;
+
+	/**
+	 * @param n      - Number of processes
+	 * @param ids    - Number of messages that have acknowledgments, a power of 2
+	 * @param ackers - Number of processes that acknowledged each of them
+	 * @return Returns msgAckCount() of the next message.
+	 */
+	IntSupplier ackCounter(int n, int ids, int ackers) throws IOException;
+
+	/**
+	 * @param n - Number of processes
+	 * @return FIFO delivers the next message of process 2, given the ID it
+	 *         returns last time. The message is added to the received messages
+	 *         first, as after its URB delivery.
+	 */
+	IntUnaryOperator fifoDeliverer(int n) throws IOException;
+
+	/**
+	 * @param n           - Number of processes
+	 * @param deliverable - Whether the vector clock of the process allows the
+	 *                    message to be delivered
+	 * @return Checks whether a message of process 2 can be delivered in causal
+	 *         order.
+	 */
+	BooleanSupplier lcbChecker(int n, boolean deliverable) throws IOException;
+
+	/**
+	 * @param n    - Number of processes
+	 * @param size - Number of messages in the backlog
+	 * @return Makes size messages of processes n .. 2 pending, each one
+	 *         depending on the one before, in reverse order so that nothing can
+	 *         be delivered until the first one arrives. Waits until the last one
+	 *         is delivered and returns its ID. Every process acknowledged every
+	 *         message already, so that they are stable once delivered.
+	 */
+	IntSupplier causalBacklog(int n, int size) throws IOException;
+
+	/**
+	 * @param n - Number of processes
+	 * @return A running cluster of n processes.
+	 */
+	Cluster cluster(int n) throws IOException;
+
+	/**
+	 * n processes that run in this JVM and talk through loopback sockets. Process
+	 * i depends on process i - 1.
+	 */
+	interface Cluster extends AutoCloseable {
+		/**
+		 * Broadcast count messages from process 1, in batches of the configured
+		 * size as its flow control allows, and wait until every process delivered
+		 * them.
+		 *
+		 * @param count - Number of messages
+		 * @return Number of messages delivered by process 1 so far.
+		 */
+		int broadcastAndWait(int count);
+
+		@Override
+		void close();
+	}
+}
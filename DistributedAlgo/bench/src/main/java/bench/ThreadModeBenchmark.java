@@ -0,0 +1,66 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the loopback cluster of LoopbackBenchmark with the received
+ * messages handled by platform threads or by virtual threads (da.threads).
+ * Each mode runs in a fork of its own, since the mode is read once per JVM.
+ * Virtual threads need a Java 21 JVM, an older one runs both on platform
+ * threads.
+ */
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@State(Scope.Benchmark)
+public class ThreadModeBenchmark {
+	static final int WINDOW = LoopbackBenchmark.WINDOW;
+
+	@Param({ "5", "25" })
+	public int processes;
+
+	private StackFixtures.Cluster cluster;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		cluster = Fixtures.STACK.cluster(processes);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		cluster.close();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(WINDOW)
+	@Fork(value = 1, jvmArgsAppend = "-Dda.threads=platform")
+	public int platform() {
+		return cluster.broadcastAndWait(WINDOW);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(WINDOW)
+	@Fork(value = 1, jvmArgsAppend = "-Dda.threads=virtual")
+	public int virtual() {
+		return cluster.broadcastAndWait(WINDOW);
+	}
+}
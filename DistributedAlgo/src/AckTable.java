@@ -0,0 +1,269 @@
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Acknowledgments received for each broadcast message, keyed by the original
+ * sender and the message ID. Every message has a bitmap of the processes that
+ * acknowledged it, so recording an ack and counting them are constant time.
+ *
+ * Once a message is stable, delivered by this process and known to be had by
+ * every process that is not suspected, its entry is retired: the bitmap is
+ * dropped and acknowledgments that still arrive for it are ignored. Until then
+ * the bitmap tells the relays which processes have the message already.
+ */
+public class AckTable {
+	private Process p;
+	private ConcurrentHashMap<Long, Acks> acks = new ConcurrentHashMap<Long, Acks>();
+	private ConcurrentHashMap<Integer, Retired> retired = new ConcurrentHashMap<Integer, Retired>();
+
+	// Number of delivered messages of each sender
+	private ConcurrentHashMap<Integer, Integer> delivered = new ConcurrentHashMap<Integer, Integer>();
+
+	// Delivered messages that wait for the acknowledgment of a process that is
+	// not suspected
+	private ConcurrentHashMap<Long, Acks> unstable = new ConcurrentHashMap<Long, Acks>();
+
+	/**
+	 * @param p - Process whose membership and suspicions decide stability
+	 */
+	public AckTable(Process p) {
+		this.p = p;
+	}
+
+	/**
+	 * Record that process acker has acknowledged message id of sender.
+	 *
+	 * @param sender - Process ID that broadcast the message originally
+	 * @param id     - ID of the message
+	 * @param acker  - Process ID that sent the acknowledgment
+	 * @return Number of distinct processes that acknowledged the message, 0 if
+	 *         it is retired.
+	 */
+	public int record(int sender, int id, int acker) {
+		if (isRetired(sender, id))
+			return 0;
+
+		Acks a = acks.computeIfAbsent(key(sender, id), k -> new Acks(sender, id));
+		int count = a.add(acker);
+
+		// The message may have been retired while this ack was being added
+		if (isRetired(sender, id)) {
+			acks.remove(key(sender, id));
+			return 0;
+		}
+		if (id <= delivered.getOrDefault(sender, 0))
+			check(a);
+		return count;
+	}
+
+	/**
+	 * Remember when a majority acknowledged a message, for the metrics.
+	 *
+	 * @param sender - Process ID that broadcast the message originally
+	 * @param id     - ID of the message
+	 * @param nanos  - Time of the acknowledgment that made the majority
+	 */
+	public void reachedMajority(int sender, int id, long nanos) {
+		Acks a = acks.get(key(sender, id));
+		if (a != null)
+			a.majorityAt = nanos;
+	}
+
+	/**
+	 * @return Time at which a majority acknowledged message id of sender, -1 if
+	 *         unknown.
+	 */
+	public long getMajorityAt(int sender, int id) {
+		Acks a = acks.get(key(sender, id));
+		return a == null ? -1 : a.majorityAt;
+	}
+
+	/**
+	 * @param sender - Process ID that broadcast the message originally
+	 * @param id     - ID of the message
+	 * @return Number of distinct processes that acknowledged the message.
+	 */
+	public int count(int sender, int id) {
+		Acks a = acks.get(key(sender, id));
+		return a == null ? 0 : a.count();
+	}
+
+	/**
+	 * @return True if process acker has acknowledged message id of sender.
+	 */
+	public boolean hasAcked(int sender, int id, int acker) {
+		Acks a = acks.get(key(sender, id));
+		return a != null && a.contains(acker);
+	}
+
+	/**
+	 * Note that the messages of sender up to lastId have been delivered, and
+	 * retire the ones that are stable.
+	 *
+	 * @param sender - Process ID that broadcast the messages originally
+	 * @param lastId - ID of its last delivered message
+	 */
+	public void delivered(int sender, int lastId) {
+		int from = delivered.getOrDefault(sender, 0);
+		if (lastId <= from)
+			return;
+		delivered.merge(sender, lastId, Math::max);
+
+		for (int id = from + 1; id <= lastId; id++) {
+			Acks a = acks.get(key(sender, id));
+			if (a != null)
+				check(a);
+		}
+	}
+
+	/**
+	 * Continue after the messages delivered before a restart.
+	 *
+	 * @param counts - Number of messages delivered of each sender, by index
+	 */
+	public void restore(int[] counts) {
+		for (int i = 0; i < counts.length; i++)
+			delivered.merge(i + 1, counts[i], Math::max);
+	}
+
+	/**
+	 * Retire the delivered messages that only waited for processes that are
+	 * suspected now. Called when a process becomes suspected.
+	 */
+	public void collect() {
+		for (Acks a : unstable.values())
+			check(a);
+	}
+
+	/**
+	 * Retire a delivered message if it is stable, or keep it with the unstable
+	 * ones.
+	 */
+	private void check(Acks a) {
+		if (isStable(a)) {
+			unstable.remove(key(a.sender, a.id));
+			retire(a.sender, a.id);
+		} else {
+			unstable.putIfAbsent(key(a.sender, a.id), a);
+		}
+	}
+
+	/**
+	 * @return True if every process that did not acknowledge the message is
+	 *         suspected.
+	 */
+	private boolean isStable(Acks a) {
+		int n = p.getProcesses().size();
+		for (int acker = a.nextMissing(1); acker <= n; acker = a.nextMissing(acker + 1)) {
+			if (!p.isSuspected(acker))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Drop the acknowledgments of a stable message.
+	 *
+	 * @param sender - Process ID that broadcast the message originally
+	 * @param id     - ID of the message
+	 */
+	private void retire(int sender, int id) {
+		retired.computeIfAbsent(sender, s -> new Retired()).add(id);
+		acks.remove(key(sender, id));
+	}
+
+	/**
+	 * @param sender - Process ID that broadcast the messages originally
+	 * @return ID up to which every message of sender is stable, 0 if none.
+	 */
+	public int getStableUpTo(int sender) {
+		Retired r = retired.get(sender);
+		return r == null ? 0 : r.upTo();
+	}
+
+	public boolean isRetired(int sender, int id) {
+		Retired r = retired.get(sender);
+		return r != null && r.contains(id);
+	}
+
+	/**
+	 * @return Number of messages that currently hold acknowledgments.
+	 */
+	public int size() {
+		return acks.size();
+	}
+
+	/**
+	 * Long.hashCode() of sender << 32 | id is sender ^ id, so the keys of the
+	 * same IDs from a few senders would collide. Multiplying by an odd constant
+	 * keeps the key unique and spreads it over every bit.
+	 */
+	private static long key(int sender, int id) {
+		return (((long) sender << 32) | (id & 0xFFFFFFFFL)) * 0x9E3779B97F4A7C15L;
+	}
+
+	/**
+	 * Processes that acknowledged one message.
+	 */
+	private static class Acks {
+		private int sender;
+		private int id;
+		private BitSet ackers = new BitSet();
+		private int count = 0;
+		private volatile long majorityAt = -1;
+
+		private Acks(int sender, int id) {
+			this.sender = sender;
+			this.id = id;
+		}
+
+		private synchronized int add(int acker) {
+			if (!ackers.get(acker)) {
+				ackers.set(acker);
+				count++;
+			}
+			return count;
+		}
+
+		private synchronized boolean contains(int acker) {
+			return ackers.get(acker);
+		}
+
+		private synchronized int count() {
+			return count;
+		}
+
+		/**
+		 * @return First process ID from acker on that did not acknowledge.
+		 */
+		private synchronized int nextMissing(int acker) {
+			return ackers.nextClearBit(acker);
+		}
+	}
+
+	/**
+	 * Retired IDs of one sender: every ID up to a watermark, plus the retired IDs
+	 * above it. IDs are retired almost in order, so the set stays small.
+	 */
+	private static class Retired {
+		private int upTo = 0;
+		private HashSet<Integer> above = new HashSet<Integer>();
+
+		private synchronized void add(int id) {
+			if (id <= upTo)
+				return;
+			above.add(id);
+			while (above.remove(upTo + 1))
+				upTo++;
+		}
+
+		private synchronized boolean contains(int id) {
+			return id <= upTo || above.contains(id);
+		}
+
+		private synchronized int upTo() {
+			return upTo;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cumulative and selective acknowledgments of the perfect links.
+ *
+ * As a receiver, it remembers which IDs of each original sender arrived from
+ * each peer. Instead of one ack per datagram, every flush sends one ack per
+ * (peer, sender) that received something: "all IDs up to k" plus the ranges
+ * above k received since the last flush. A peer may never send some IDs of a
+ * sender, e.g. relays skip the processes that have them, so the lowest gaps
+ * may stay open for good: the ranges are not always the lowest ones but the
+ * ones that still need an ack. Such gaps are closed once the IDs below them
+ * are stable, see AckTable: this process has them, so the cumulative ack
+ * covers them and the received IDs of a link stay a few ranges above the
+ * stable ones. The acknowledged IDs of the other end follow, through its
+ * cumulative acks.
+ *
+ * As a sender, it remembers which IDs each peer has acknowledged so that an
+ * incoming ack only yields the IDs it acknowledges for the first time.
+ *
+ * Every ack carries its list of ranges, empty if there is none. An ack without
+ * one is the per message ack of a build before cumulative acks, whose ID is
+ * the only message it acknowledges. Reading it as cumulative would cancel the
+ * retransmission of lower IDs that were never received, so it is ignored.
+ * Processes of those builds cannot take part in a run with this one.
+ */
+public class AckTracker {
+	private Process p;
+
+	// IDs received from each link, and the links that must be acknowledged
+	private ConcurrentHashMap<Link, RangeSet> received = new ConcurrentHashMap<Link, RangeSet>();
+	private Set<Link> dirty = ConcurrentHashMap.newKeySet();
+
+	// IDs received from each link since they were last acknowledged
+	private ConcurrentHashMap<Link, RangeSet> fresh = new ConcurrentHashMap<Link, RangeSet>();
+
+	// IDs acknowledged by the other end of each link
+	private ConcurrentHashMap<Link, RangeSet> acknowledged = new ConcurrentHashMap<Link, RangeSet>();
+
+	public AckTracker(Process p) {
+		this.p = p;
+	}
+
+	/**
+	 * Record a received data message. The link is acknowledged on the next
+	 * flush, even if the message is a duplicate: its ack may have been lost.
+	 *
+	 * @param peer - Address the message was received from
+	 * @param msg  - Received message, possibly a batch
+	 */
+	public void received(InetSocketAddress peer, Message msg) {
+		Link link = new Link(peer, msg.getSender());
+		received.computeIfAbsent(link, l -> new RangeSet()).add(msg.getId(), msg.getId() + msg.getCount() - 1);
+		fresh.computeIfAbsent(link, l -> new RangeSet()).add(msg.getId(), msg.getId() + msg.getCount() - 1);
+		dirty.add(link);
+	}
+
+	/**
+	 * Send one cumulative and selective ack for every link that received
+	 * messages since the last flush.
+	 */
+	public void flush() {
+		for (Iterator<Link> it = dirty.iterator(); it.hasNext();) {
+			Link link = it.next();
+			it.remove();
+
+			RangeSet ids = received.get(link);
+			// Close the gaps below the stable IDs, which this process has
+			int stable = p.getAckTable().getStableUpTo(link.sender);
+			if (stable > 0)
+				ids.add(1, stable);
+			int cumulative = ids.getCumulative();
+			RangeSet unacked = fresh.get(link);
+			Message ack = new Message("", link.peer.getPort(), link.peer.getAddress(), p.getPort(), p.getIp(),
+					cumulative, true, false, link.sender, p.getProcessId(), new VectorClock(0));
+			ack.setSackRanges(unacked.poll(cumulative + 1, Config.MAX_SACK_RANGES));
+			p.sendMessage(ack);
+
+			// Too many ranges for one ack, the others go with the next flush
+			if (!unacked.isEmpty())
+				dirty.add(link);
+		}
+	}
+
+	/**
+	 * @param ack - Received cumulative and selective ack
+	 * @return The ranges {start, end} of IDs acknowledged for the first time,
+	 *         none for an ack without its list of ranges.
+	 */
+	public ArrayList<int[]> acknowledged(Message ack) {
+		ArrayList<int[]> added = new ArrayList<int[]>();
+		ArrayList<Integer> sack = ack.getSackRanges();
+		if (sack == null)
+			return added;
+
+		Link link = new Link(new InetSocketAddress(ack.getSourceInetAddr(), ack.getSourcePort()), ack.getSender());
+		RangeSet ids = acknowledged.computeIfAbsent(link, l -> new RangeSet());
+
+		if (ack.getId() > 0)
+			added.addAll(ids.add(1, ack.getId()));
+
+		for (int i = 0; i + 1 < sack.size(); i += 2)
+			added.addAll(ids.add(sack.get(i), sack.get(i + 1)));
+		return added;
+	}
+
+	/**
+	 * @param m - Message sent to a peer
+	 * @return True if the peer has already acknowledged the ID of m.
+	 */
+	public boolean isAcknowledged(Message m) {
+		InetSocketAddress peer = new InetSocketAddress(m.getDestinationInetAddr(), m.getDestinationPort());
+		RangeSet ids = acknowledged.get(new Link(peer, m.getSender()));
+		return ids != null && ids.contains(m.getId());
+	}
+
+	/**
+	 * One direction of a perfect link, for the messages of one original sender.
+	 */
+	private static class Link {
+		private InetSocketAddress peer;
+		private int sender;
+
+		private Link(InetSocketAddress peer, int sender) {
+			this.peer = peer;
+			this.sender = sender;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(peer, sender);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Link))
+				return false;
+
+			Link link = (Link) o;
+			return sender == link.sender && peer.equals(link.peer);
+		}
+	}
+}
@@ -1,7 +1,7 @@
 import java.io.IOException;
 import java.util.ArrayList;
 
-public class BestEffortBroadcast {
+public class BestEffortBroadcast implements Disseminator {
 
 	private Process p;
 
@@ -9,14 +9,26 @@ public class BestEffortBroadcast {
 		this.p = p;
 	}
 
+	@Override
 	public void sendMessage(ArrayList<Message> messages) throws IOException {
-		for (Message m : messages) {
-			p.sendMessage(m);
-		}
-
+		p.sendMessages(messages);
 	}
 
 	public boolean deliverMessage(Message msg) {
 		return true;
 	}
+
+	// Every process gets every message directly, there is nothing to repair
+
+	@Override
+	public void received(Message single) {
+	}
+
+	@Override
+	public void digestReceived(Message digest) {
+	}
+
+	@Override
+	public void tick() {
+	}
 }
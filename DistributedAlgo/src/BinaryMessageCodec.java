@@ -0,0 +1,337 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Compact binary wire format for Message.
+ *
+ * Layout (version 1):
+ *
+ * <pre>
+ * u8      version
+ * u8      flags        (ACK, BROADCAST, HAS_ACK_SENDER, BATCH, SACK, DIGEST)
+ * varint  sender
+ * varint  id
+ * varint  ackSender    (only if HAS_ACK_SENDER)
+ * varint  count        (only if BATCH)
+ * addr    source       (u8 length, address bytes, u16 port)
+ * addr    destination
+ * varint  length of m, followed by the UTF-8 bytes of m
+ * clock   vector clock, sparse (see VectorClock.encode)
+ * delta   vector clock of id + 1 .. id + count - 1 (only if BATCH)
+ * varint  number of SACK ranges, then for each range the varint distance
+ *         from the end of the previous one (or from id) and its varint length
+ *         (only if SACK)
+ * varint  number of values of the digest, then each value as a varint (only
+ *         if DIGEST)
+ * </pre>
+ *
+ * A delta only holds the entries that differ from the previous clock (see
+ * VectorClock.encodeDelta). Consecutive broadcasts rarely change the clock, so
+ * most deltas take 1 byte.
+ *
+ * Everything from the text on is the body. A relay has the body of the
+ * message it relays, so encodeRelay() copies it from the received datagram.
+ *
+ * The thread ID is not sent, it only has a meaning inside the sending process.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+
+	public static final byte VERSION = 1;
+
+	static final int FLAG_ACK = 1;
+	static final int FLAG_BROADCAST = 1 << 1;
+	static final int FLAG_HAS_ACK_SENDER = 1 << 2;
+	static final int FLAG_BATCH = 1 << 3;
+	static final int FLAG_SACK = 1 << 4;
+	static final int FLAG_DIGEST = 1 << 5;
+
+	// Upper bound of everything but the vector clocks in an encoded message
+	static final int MAX_HEADER_SIZE = 80;
+
+	// Lower bound of an encoded message: header, two IPv4 addresses, empty text
+	// and clock
+	static final int MIN_SIZE = 20;
+
+	// Largest vector clock that is decoded
+	private int maxClockSize;
+
+	public BinaryMessageCodec() {
+		this(VectorClock.MAX_SIZE);
+	}
+
+	/**
+	 * @param processCount - Number of processes of the membership, which bounds
+	 *                     the size of the decoded vector clocks
+	 */
+	public BinaryMessageCodec(int processCount) {
+		this.maxClockSize = processCount;
+	}
+
+	@Override
+	public void encode(Message m, ByteBuffer out) throws IOException {
+		int flags = 0;
+		if (m.isAck())
+			flags |= FLAG_ACK;
+		if (m.isBroadcast())
+			flags |= FLAG_BROADCAST;
+		if (m.getAckSender() != null)
+			flags |= FLAG_HAS_ACK_SENDER;
+		if (m.isBatch())
+			flags |= FLAG_BATCH;
+		if (m.getSackRanges() != null)
+			flags |= FLAG_SACK;
+		if (m.isDigest())
+			flags |= FLAG_DIGEST;
+
+		putHeader(m, flags, out);
+
+		byte[] text = m.getM().getBytes(StandardCharsets.UTF_8);
+		putVarInt(out, text.length);
+		out.put(text);
+
+		m.getVectorClock().encode(out);
+
+		if (m.isBatch()) {
+			ArrayList<VectorClock> clocks = m.getBatchClocks();
+			for (int i = 1; i < clocks.size(); i++)
+				clocks.get(i).encodeDelta(out, clocks.get(i - 1));
+		}
+
+		ArrayList<Integer> sack = m.getSackRanges();
+		if (sack != null) {
+			putVarInt(out, sack.size() / 2);
+			int previous = m.getId();
+			for (int i = 0; i + 1 < sack.size(); i += 2) {
+				putVarInt(out, sack.get(i) - previous);
+				putVarInt(out, sack.get(i + 1) - sack.get(i));
+				previous = sack.get(i + 1);
+			}
+		}
+
+		if (m.isDigest()) {
+			putVarInt(out, m.getDigest().size());
+			for (Integer value : m.getDigest())
+				putVarInt(out, value);
+		}
+	}
+
+	/**
+	 * Write a relay of a received message: a header of its own followed by the
+	 * body of the received datagram, copied without decoding it. Relays carry
+	 * neither acknowledgments nor digests, so the body is the same.
+	 *
+	 * @param m     - Relay to be sent
+	 * @param frame - Received datagram of the relayed message, retained
+	 * @param out   - Buffer that receives the encoded bytes
+	 */
+	public void encodeRelay(Message m, Frame frame, ByteBuffer out) {
+		int flags = 0;
+		if (m.isBroadcast())
+			flags |= FLAG_BROADCAST;
+		if (m.isBatch())
+			flags |= FLAG_BATCH;
+
+		putHeader(m, flags, out);
+		out.put(frame.getBody());
+	}
+
+	private static void putHeader(Message m, int flags, ByteBuffer out) {
+		out.put(VERSION);
+		out.put((byte) flags);
+		putVarInt(out, m.getSender());
+		putVarInt(out, m.getId());
+		if (m.getAckSender() != null)
+			putVarInt(out, m.getAckSender());
+		if (m.isBatch())
+			putVarInt(out, m.getCount());
+
+		putAddress(out, m.getSourceInetAddr(), m.getSourcePort());
+		putAddress(out, m.getDestinationInetAddr(), m.getDestinationPort());
+	}
+
+	@Override
+	public Message decode(ByteBuffer in) throws IOException {
+		try {
+			byte version = in.get();
+			if (version != VERSION)
+				throw new IOException("Unknown message version " + version + ".");
+
+			int flags = in.get();
+			Integer sender = getVarInt(in);
+			Integer id = getVarInt(in);
+			Integer ackSender = null;
+			if ((flags & FLAG_HAS_ACK_SENDER) != 0)
+				ackSender = getVarInt(in);
+			int count = 1;
+			if ((flags & FLAG_BATCH) != 0)
+				count = getCount(in);
+
+			InetAddress sourceAddr = getAddress(in);
+			Integer sourcePort = getPort(in);
+			InetAddress destinationAddr = getAddress(in);
+			Integer destinationPort = getPort(in);
+
+			byte[] text = new byte[getCount(in)];
+			in.get(text);
+
+			VectorClock vectorClock = VectorClock.decode(in, maxClockSize);
+
+			Message m = new Message(new String(text, StandardCharsets.UTF_8), destinationPort, destinationAddr,
+					sourcePort, sourceAddr, id, (flags & FLAG_ACK) != 0, (flags & FLAG_BROADCAST) != 0, sender,
+					ackSender, vectorClock);
+
+			if (count > 1) {
+				ArrayList<VectorClock> clocks = new ArrayList<VectorClock>(count);
+				clocks.add(vectorClock);
+				for (int i = 1; i < count; i++)
+					clocks.add(VectorClock.decodeDelta(in, clocks.get(i - 1)));
+				m.setBatch(clocks);
+			}
+
+			if ((flags & FLAG_SACK) != 0) {
+				int ranges = getCount(in);
+				ArrayList<Integer> sack = new ArrayList<Integer>(2 * ranges);
+				int previous = id;
+				for (int i = 0; i < ranges; i++) {
+					int start = previous + getVarInt(in);
+					previous = start + getVarInt(in);
+					sack.add(start);
+					sack.add(previous);
+				}
+				m.setSackRanges(sack);
+			}
+
+			if ((flags & FLAG_DIGEST) != 0) {
+				int size = getCount(in);
+				ArrayList<Integer> digest = new ArrayList<Integer>(size);
+				for (int i = 0; i < size; i++)
+					digest.add(getVarInt(in));
+				m.setDigest(digest);
+			}
+			return m;
+		} catch (BufferUnderflowException | NegativeArraySizeException e) {
+			throw new IOException("Truncated message.", e);
+		} catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw new IOException("Invalid message.", e);
+		}
+	}
+
+	/**
+	 * @param in - Received datagram
+	 * @return True if the datagram was written by this codec.
+	 */
+	public static boolean matches(ByteBuffer in) {
+		return in.hasRemaining() && in.get(in.position()) == VERSION;
+	}
+
+	/**
+	 * Write a non-negative int as an unsigned LEB128 varint (1 to 5 bytes).
+	 */
+	static void putVarInt(ByteBuffer out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	/**
+	 * Read the original sender of an encoded message without decoding it.
+	 *
+	 * @param in - Encoded message, its position is left unchanged
+	 * @return Sender of the message, or -1 if it is not in this format.
+	 */
+	public static int peekSender(ByteBuffer in) {
+		ByteBuffer header = in.duplicate();
+		try {
+			if (header.get() != VERSION)
+				return -1;
+			header.get();
+			return getVarInt(header);
+		} catch (IOException | BufferUnderflowException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Find where the body (text and vector clocks) of an encoded message
+	 * starts, after the header and the two addresses.
+	 *
+	 * @param in - Encoded message, its position is left unchanged
+	 * @return Position of the body in the buffer.
+	 */
+	public static int bodyStart(ByteBuffer in) throws IOException {
+		ByteBuffer header = in.duplicate();
+		try {
+			header.get();
+			int flags = header.get();
+			getVarInt(header);
+			getVarInt(header);
+			if ((flags & FLAG_HAS_ACK_SENDER) != 0)
+				getVarInt(header);
+			if ((flags & FLAG_BATCH) != 0)
+				getVarInt(header);
+			for (int i = 0; i < 2; i++) {
+				int length = header.get();
+				header.position(header.position() + length + 2);
+			}
+			return header.position();
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("Truncated message.", e);
+		}
+	}
+
+	static int getVarInt(ByteBuffer in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			byte b = in.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed varint.");
+	}
+
+	/**
+	 * Read the number of items that follow. Every item takes at least one byte,
+	 * so a count larger than what is left of the datagram is rejected before
+	 * anything is allocated for it.
+	 */
+	static int getCount(ByteBuffer in) throws IOException {
+		int count = getVarInt(in);
+		if (count < 0 || count > in.remaining())
+			throw new IOException("Count out of range.");
+		return count;
+	}
+
+	/**
+	 * @param processCount - Number of entries of the vector clocks
+	 * @param mtu          - Largest datagram that should be sent
+	 * @return Most messages of a batch that fit in one datagram, if consecutive
+	 *         clocks are equal (each entry takes at most 7 bytes in a clock).
+	 */
+	public static int batchLimit(int processCount, int mtu) {
+		return Math.max(1, mtu - MAX_HEADER_SIZE - 7 * processCount);
+	}
+
+	private static void putAddress(ByteBuffer out, InetAddress addr, Integer port) {
+		byte[] raw = addr.getAddress();
+		out.put((byte) raw.length);
+		out.put(raw);
+		out.putShort((short) port.intValue());
+	}
+
+	private static InetAddress getAddress(ByteBuffer in) throws IOException {
+		byte[] raw = new byte[in.get()];
+		in.get(raw);
+		return InetAddress.getByAddress(raw);
+	}
+
+	private static Integer getPort(ByteBuffer in) {
+		return in.getShort() & 0xFFFF;
+	}
+}
@@ -0,0 +1,50 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Fixed set of buffers that are reused instead of being allocated for every
+ * datagram. A thread that finds the pool empty waits until another thread
+ * releases a buffer, which slows down the producer instead of growing the
+ * memory.
+ *
+ * The buffers are direct, so that a channel receives into them without going
+ * through a temporary buffer of its own.
+ */
+public class BufferPool {
+	private ArrayBlockingQueue<ByteBuffer> free;
+
+	/**
+	 * @param count - Number of buffers
+	 * @param size  - Capacity of each buffer in bytes
+	 */
+	public BufferPool(int count, int size) {
+		this.free = new ArrayBlockingQueue<ByteBuffer>(count);
+		for (int i = 0; i < count; i++)
+			this.free.add(ByteBuffer.allocateDirect(size));
+	}
+
+	/**
+	 * @return A cleared buffer, waiting until one is released if none is free.
+	 */
+	public ByteBuffer acquire() throws InterruptedException {
+		ByteBuffer buffer = free.take();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer back to the pool. It must not be used afterwards.
+	 *
+	 * @param buffer - Buffer returned by acquire()
+	 */
+	public void release(ByteBuffer buffer) {
+		free.offer(buffer);
+	}
+
+	/**
+	 * @return Number of buffers that are free.
+	 */
+	public int getFreeCount() {
+		return free.size();
+	}
+}
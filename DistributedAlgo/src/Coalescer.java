@@ -0,0 +1,214 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Packs the encoded messages a writer sends to the same destination in one
+ * packet, so that the relays and the ack caused by a received message cost
+ * one send instead of one each.
+ *
+ * <pre>
+ * u8      MAGIC
+ * varint  length of the first message, followed by its bytes
+ * ...     the next messages, the same way
+ * </pre>
+ *
+ * A packet is sent once Config.MTU would be exceeded, or Config.COALESCE_DELAY
+ * microseconds after its first message was added. A packet that holds only
+ * one message, and a message too large to share a packet, is sent on its own
+ * without the framing, as before. The receiver splits a packet back into the
+ * messages (see UdpTransport), so the layers above see the same datagrams
+ * either way.
+ *
+ * Without Config.COALESCE every message is sent on its own at once.
+ *
+ * A coalescer belongs to one writer thread and is not thread safe.
+ */
+public class Coalescer {
+	// First byte of a packet, neither a binary message (VERSION) nor a Java
+	// serialization stream (0xAC) starts with it
+	public static final byte MAGIC = (byte) 0xDC;
+
+	private DatagramChannel channel;
+	private int mtu;
+	private long delay;
+
+	private HashMap<InetSocketAddress, Packet> packets = new HashMap<InetSocketAddress, Packet>();
+
+	// Packets that hold messages, or did since the last flush()
+	private ArrayList<Packet> open = new ArrayList<Packet>();
+
+	// Written by the writer thread only
+	private volatile long sent = 0;
+
+	/**
+	 * @param channel - Channel the packets are sent on
+	 */
+	public Coalescer(DatagramChannel channel) {
+		this.channel = channel;
+		this.mtu = Math.min(Config.MTU, SendPipeline.MAX_DATAGRAM);
+		this.delay = Config.COALESCE_DELAY * 1000L;
+	}
+
+	/**
+	 * Add an encoded message to the packet of its destination. The packet is
+	 * sent first if the message does not fit in it.
+	 *
+	 * @param destination - Destination of the message
+	 * @param message     - Encoded message, from its position to its limit
+	 * @param now         - Current time in nanoseconds
+	 */
+	public void add(InetSocketAddress destination, ByteBuffer message, long now) throws IOException {
+		int size = message.remaining();
+		Packet packet = packets.get(destination);
+		if (!Config.COALESCE || 1 + varIntSize(size) + size > mtu) {
+			// Keep the order of the messages to the destination
+			if (packet != null && packet.count > 0)
+				send(packet);
+			send(message, destination);
+			return;
+		}
+
+		if (packet == null) {
+			packet = new Packet(destination, mtu);
+			packets.put(destination, packet);
+		}
+		if (packet.count > 0 && packet.buffer.remaining() < varIntSize(size) + size)
+			send(packet);
+
+		if (packet.count == 0) {
+			packet.buffer.clear();
+			packet.buffer.put(MAGIC);
+			packet.opened = now;
+			if (!packet.open) {
+				packet.open = true;
+				open.add(packet);
+			}
+		}
+		BinaryMessageCodec.putVarInt(packet.buffer, size);
+		if (packet.count == 0)
+			packet.first = packet.buffer.position();
+		packet.buffer.put(message);
+		packet.count++;
+	}
+
+	/**
+	 * Send the packets whose delay is over, every packet if there is no delay.
+	 *
+	 * @param now - Current time in nanoseconds
+	 * @return Time at which the oldest packet left must be sent, Long.MAX_VALUE
+	 *         if none is left.
+	 */
+	public long flush(long now) throws IOException {
+		long deadline = Long.MAX_VALUE;
+		int kept = 0;
+		for (int i = 0; i < open.size(); i++) {
+			Packet packet = open.get(i);
+			if (packet.count > 0 && now - packet.opened >= delay) {
+				try {
+					send(packet);
+				} catch (ClosedChannelException e) {
+					throw e;
+				} catch (IOException e) {
+					System.out.println("Unable to send message.");
+				}
+			}
+			if (packet.count > 0) {
+				deadline = Math.min(deadline, packet.opened + delay);
+				open.set(kept++, packet);
+			} else {
+				packet.open = false;
+			}
+		}
+		open.subList(kept, open.size()).clear();
+		return deadline;
+	}
+
+	/**
+	 * @return Number of packets sent, each one holding one or more messages.
+	 */
+	public long getSent() {
+		return sent;
+	}
+
+	private void send(Packet packet) throws IOException {
+		ByteBuffer data = packet.buffer;
+		data.flip();
+		if (packet.count == 1)
+			data.position(packet.first);
+		packet.count = 0;
+		send(data, packet.destination);
+	}
+
+	private void send(ByteBuffer data, InetSocketAddress destination) throws IOException {
+		sent++;
+		channel.send(data, destination);
+	}
+
+	/**
+	 * @param in - Received datagram
+	 * @return True if the datagram is a packet of several messages.
+	 */
+	public static boolean matches(ByteBuffer in) {
+		return in.hasRemaining() && in.get(in.position()) == MAGIC;
+	}
+
+	/**
+	 * Read the next message of a packet, without copying it.
+	 *
+	 * @param in - Packet, positioned on the length of the message (after MAGIC
+	 *           for the first one)
+	 * @return Slice of the packet that holds the message.
+	 * @throws IOException - If the packet is truncated
+	 */
+	public static ByteBuffer next(ByteBuffer in) throws IOException {
+		try {
+			int size = BinaryMessageCodec.getVarInt(in);
+			if (size < 0 || size > in.remaining())
+				throw new IOException("Truncated packet.");
+			ByteBuffer message = in.slice();
+			message.limit(size);
+			in.position(in.position() + size);
+			return message;
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated packet.", e);
+		}
+	}
+
+	private static int varIntSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Messages waiting to be sent to one destination.
+	 */
+	private static class Packet {
+		private InetSocketAddress destination;
+		private ByteBuffer buffer;
+		private int count = 0;
+
+		// Position of the first message, after its length
+		private int first;
+
+		// Time at which the first message was added
+		private long opened;
+
+		// True while the packet is in the open list
+		private boolean open = false;
+
+		private Packet(InetSocketAddress destination, int mtu) {
+			this.destination = destination;
+			this.buffer = ByteBuffer.allocateDirect(mtu);
+		}
+	}
+}
@@ -0,0 +1,153 @@
+/**
+ * Run-time settings of a process. Every value can be overridden with a system
+ * property, e.g. java -Dda.codec=serialized Da_proc 1 membership 10
+ */
+public class Config {
+
+	// Wire format of outgoing messages: "binary" or "serialized"
+	public static final String CODEC = System.getProperty("da.codec", "binary");
+
+	// Outgoing messages that can wait for a writer thread before senders block
+	public static final int SEND_QUEUE_CAPACITY = Integer.getInteger("da.send.queue", 65536);
+
+	// Number of writer threads of the send pipeline
+	public static final int SEND_THREADS = Integer.getInteger("da.send.threads", 1);
+
+	// Messages a writer thread takes from the queue at once
+	public static final int SEND_BATCH = Integer.getInteger("da.send.batch", 64);
+
+	// Messages of a writer to the same destination share a datagram of at most
+	// da.mtu bytes, and a datagram that is not full waits this many
+	// microseconds for more, see Coalescer
+	public static final boolean COALESCE = Boolean.parseBoolean(System.getProperty("da.coalesce", "true"));
+	public static final int COALESCE_DELAY = Integer.getInteger("da.coalesce.delay", 100);
+
+	// IP multicast group that carries the broadcasts, empty to send one unicast
+	// datagram per process. Every process binds the group port and joins the
+	// group on the interface of its own address, or on da.multicast.if.
+	public static final String MULTICAST_GROUP = System.getProperty("da.multicast.group", "");
+	public static final int MULTICAST_PORT = Integer.getInteger("da.multicast.port", 11999);
+	public static final String MULTICAST_IF = System.getProperty("da.multicast.if", "");
+
+	// Slots of the FIFO reorder buffer of each sender; messages further ahead of
+	// the next one to deliver wait in a map
+	public static final int FIFO_WINDOW = Integer.getInteger("da.fifo.window", 4096);
+
+	// How messages are spread: "all" sends each one to every process, "gossip"
+	// to a few random processes with digests to repair the gaps
+	public static final String DISSEMINATION = System.getProperty("da.dissemination", "all");
+
+	// Processes a gossiped message or digest is sent to, 0 for ln(n) + 1
+	public static final int GOSSIP_FANOUT = Integer.getInteger("da.gossip.fanout", 0);
+
+	// Milliseconds between two rounds of gossip digests
+	public static final int GOSSIP_INTERVAL = Integer.getInteger("da.gossip.interval", 50);
+
+	// Most messages repaired in answer to one digest
+	public static final int GOSSIP_REPAIR = Integer.getInteger("da.gossip.repair", 256);
+
+	// Relays skip the processes that are known to have the message already
+	public static final boolean RELAY_SKIP_KNOWN = Boolean.parseBoolean(System.getProperty("da.relay.skip", "true"));
+
+	// Threads that decode, handle and deliver the received messages, see Threads:
+	// "platform" for Config.RECEIVE_THREADS workers and a deliver thread,
+	// "virtual" for one virtual thread per sender that also delivers
+	public static final String THREADS = System.getProperty("da.threads", "platform");
+
+	// Number of worker threads that decode and handle the received datagrams
+	public static final int RECEIVE_THREADS = Integer.getInteger("da.receive.threads",
+			Runtime.getRuntime().availableProcessors());
+
+	// Datagrams that can wait for the worker threads before the socket is not
+	// read. A deep queue only delays the acks, the socket buffer absorbs bursts.
+	public static final int RECEIVE_BUFFERS = Integer.getInteger("da.receive.buffers", 64);
+
+	// Tick of the retransmission timer wheel in milliseconds
+	public static final int WHEEL_TICK = Integer.getInteger("da.wheel.tick", 10);
+
+	// Number of slots of the retransmission timer wheel
+	public static final int WHEEL_SLOTS = Integer.getInteger("da.wheel.slots", 512);
+
+	// Retransmission timeout before any round trip has been measured, and its bounds
+	public static final int INITIAL_RTO = Integer.getInteger("da.rto.initial", 100);
+	public static final int MIN_RTO = Integer.getInteger("da.rto.min", 20);
+	public static final int MAX_RTO = Integer.getInteger("da.rto.max", 2000);
+
+	// Transmissions of one message without hearing from its destination after
+	// which the destination is suspected to have crashed
+	public static final int SUSPECT_RETRIES = Integer.getInteger("da.suspect.retries", 20);
+
+	// Consecutive broadcasts packed in one datagram, 1 sends every message alone
+	public static final int BATCH_SIZE = Integer.getInteger("da.batch", 1);
+
+	// Largest datagram a batch may fill
+	public static final int MTU = Integer.getInteger("da.mtu", 1400);
+
+	// Most selective ranges carried by one acknowledgment
+	public static final int MAX_SACK_RANGES = Integer.getInteger("da.sack.ranges", 32);
+
+	// Log output: "buffered" writes through a buffer, "mmap" into a mapped file
+	public static final String LOG_MODE = System.getProperty("da.log.mode", "buffered");
+
+	// Log lines that can wait for the log writer before processes block
+	public static final int LOG_CAPACITY = Integer.getInteger("da.log.capacity", 65536);
+
+	// When the log is forced to disk: "close", "group" or "interval"
+	public static final String LOG_FLUSH = System.getProperty("da.log.flush", "close");
+	public static final int LOG_FLUSH_MS = Integer.getInteger("da.log.flush.ms", 100);
+
+	// Size of each mapped region of the log file in mmap mode
+	public static final int LOG_MAP_SIZE = Integer.getInteger("da.log.map.size", 4 << 20);
+
+	// Write-ahead log of the broadcasts and deliveries, see WriteAheadLog. With
+	// da.recover a process restarts from the log of its previous run instead of
+	// from scratch
+	public static final boolean RECOVER = Boolean.getBoolean("da.recover");
+	public static final boolean WAL = Boolean.getBoolean("da.wal") || RECOVER;
+
+	// Size of each segment of the write-ahead log, how often it is forced to
+	// disk and how many records may follow the last checkpoint
+	public static final int WAL_SEGMENT_SIZE = Integer.getInteger("da.wal.segment", 4 << 20);
+	public static final int WAL_SYNC_MS = Integer.getInteger("da.wal.sync.ms", 10);
+	public static final int WAL_CHECKPOINT = Integer.getInteger("da.wal.checkpoint", 4096);
+
+	// Keep the parsed membership file next to it, see Membership. Off by
+	// default, the directory of the file may be read-only
+	public static final boolean MEMBERSHIP_CACHE = Boolean.getBoolean("da.membership.cache");
+
+	// Messages run through the codec and the clocks while the process starts,
+	// see Warmup. 0 starts cold
+	public static final int WARMUP = Integer.getInteger("da.warmup", 10000);
+
+	// Port of the local metrics endpoint of process 1, process i uses port + i - 1.
+	// 0 disables the endpoint
+	public static final int METRICS_PORT = Integer.getInteger("da.metrics.port", 0);
+
+	// Congestion window of each destination, in messages of this process that
+	// have not been acknowledged: initial size and bounds
+	public static final int WINDOW_INITIAL = Integer.getInteger("da.window.initial", 64);
+	public static final int WINDOW_MIN = Integer.getInteger("da.window.min", 1);
+	public static final int WINDOW_MAX = Integer.getInteger("da.window.max", 8192);
+
+	// Simulated network: seed of the random losses and delays, probability that
+	// a datagram is lost, one-way delay and largest extra random delay in
+	// microseconds, and bandwidth of each process in bytes per second (0 for
+	// unlimited)
+	public static final long SIM_SEED = Long.getLong("da.sim.seed", 1);
+	public static final double SIM_LOSS = Double.parseDouble(System.getProperty("da.sim.loss", "0"));
+	public static final int SIM_DELAY = Integer.getInteger("da.sim.delay", 500);
+	public static final int SIM_JITTER = Integer.getInteger("da.sim.jitter", 0);
+	public static final long SIM_BANDWIDTH = Long.getLong("da.sim.bandwidth", 0);
+
+	// Virtual time after which a simulation gives up, in seconds
+	public static final int SIM_TIME_LIMIT = Integer.getInteger("da.sim.time", 3600);
+
+	/**
+	 * @return Codec used to encode outgoing messages.
+	 */
+	public static MessageCodec createCodec() {
+		if (CODEC.equals("serialized"))
+			return new SerializedMessageCodec();
+		return new BinaryMessageCodec();
+	}
+}
@@ -1,7 +1,5 @@
 import java.io.*;
 import java.net.*;
-import java.util.ArrayList;
-import java.util.Scanner;
 
 public class Da_proc {
 
@@ -15,50 +13,29 @@ public class Da_proc {
             if (args[2] != null)
                 broadcastCount = Integer.parseInt(args[2]);
 
-            // Initialize File, Scanner and Process
-            File membership = new File(fileName);
-            Scanner sc = new Scanner(membership);
-            Process pi = null;
+            // Read the membership file, or its cache
+            Membership membership = Membership.load(fileName);
+            Integer n = membership.size();
 
-            // Parse first line from membership file that has total numbers of processes
-            Integer n = Integer.parseInt(sc.nextLine());
+            InetSocketAddress address = membership.getAddress(processID);
+            Process pi = new Process(address.getAddress(), address.getPort(), processID, broadcastCount, n);
 
-            // processes read all process IP addresses and port numbers from membership file
-            ArrayList<InetSocketAddress> processes = new ArrayList<InetSocketAddress>();
+            // Read the dependencies between processes
+            for (int affected : membership.getAffected(processID))
+                pi.setIsAffected(affected - 1, true);
 
-            // Read the membership file
-            for (Integer i = 0; i < n; i++) {
-                // Read one line
-                String[] params = sc.nextLine().trim().split(" ");
-                Integer currentID = Integer.parseInt(params[0]);
-                InetAddress piAddr = InetAddress.getByName(params[1]);
-                Integer port = Integer.parseInt(params[2]);
+            // Finally set list of all processes to the current process
+            pi.setProcesses(membership.getAddresses());
 
-                // Add to processes the current addr/port
-                processes.add(new InetSocketAddress(piAddr, port));
+            // After a restart, send again what nobody may have received
+            pi.resendRecovered();
 
-                // Check if the ID's match
-                if (currentID == processID) {
-                    pi = new Process(piAddr, port, processID, broadcastCount, n);
-                    // Set all of the affected processes to false
-                    for (Integer j = 0; j < n; j++)
-                        pi.addToIsAffected(false);
-                }
-            }
+            // Wait for USR2 to broadcast, and TERM or INT to stop
+            pi.handleSignals();
+            pi.getMetrics().register();
 
-            // Read the dependencies between processes
-            for (Integer i = 0; i < n; i++) {
-                String[] params = sc.nextLine().trim().split(" ");
-                if (i + 1 == processID) {
-                    for (int j = 1; j < params.length; j++) {
-                        pi.setIsAffected(Integer.parseInt(params[j]) - 1, true);
-                    }
-                    break;
-                }
-            }
-            // Finally set list of all processes to the current process
-            pi.setProcesses(processes);
-            sc.close();
+            // Compile the per message code while waiting for USR2
+            new Warmup(n).start();
         }
     }
 }
@@ -0,0 +1,41 @@
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Spreads the broadcast and relayed messages of a process. Uniform reliable
+ * broadcast does not depend on how: it only needs every correct process to
+ * get every message eventually and counts acknowledgments in the AckTable.
+ *
+ * BestEffortBroadcast sends every message to every process.
+ * GossipDisseminator sends it to a few random processes and repairs the gaps
+ * with digests, which scales to larger memberships.
+ */
+public interface Disseminator {
+
+	/**
+	 * Send a message, given as one copy per destination. Copies for this
+	 * process itself are always sent.
+	 *
+	 * @param copies - The copies of the message that may be sent
+	 */
+	void sendMessage(ArrayList<Message> copies) throws IOException;
+
+	/**
+	 * A message arrived at this process.
+	 *
+	 * @param single - Received message, never a batch
+	 */
+	void received(Message single);
+
+	/**
+	 * A gossip digest arrived at this process.
+	 *
+	 * @param digest - Received digest
+	 */
+	void digestReceived(Message digest);
+
+	/**
+	 * Called on every tick of the process timer.
+	 */
+	void tick();
+}
@@ -1,6 +1,8 @@
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class FIFOBroadcast {
 	private Process p;
@@ -18,6 +20,17 @@ public class FIFOBroadcast {
 		}
 	}
 
+	/**
+	 * Continue after the messages delivered before a restart.
+	 *
+	 * @param delivered - Number of messages delivered of each sender, by index
+	 */
+	public void restore(int[] delivered) {
+		for (int i = 0; i < delivered.length; i++)
+			this.fifoDelivered.get(i + 1).cursor.set(delivered[i] + 1);
+		this.p.getAckTable().restore(delivered);
+	}
+
 	public void sendMessage(ArrayList<Message> messages) {
 
 		// URB broadcast all messages
@@ -29,55 +42,184 @@ public class FIFOBroadcast {
 		Integer id = message.getId();
 
 		// If we can URB deliver, add it to possible deliverable messages
-		if (this.urb.canDeliver(message) && delivered.getMsg(id) == null)
+		if (!delivered.isDelivered(id) && delivered.getMsg(id) == null && this.urb.canDeliver(message)) {
+			message.setUrbAt(this.p.getAckTable().getMajorityAt(message.getSender(), id));
 			delivered.addDeliverMsg(message);
+		}
 
 		// Deliver all available packets
 		delivered.deliver();
 	}
 
 	/**
-	 * Store the URB delivered messages and check if we can FIFO deliver.
+	 * @return Number of URB delivered messages that wait for an earlier message
+	 *         of their sender.
+	 */
+	public int getGapCount() {
+		int gaps = 0;
+		for (CanDeliver delivered : this.fifoDelivered.values())
+			gaps += delivered.getGapCount();
+		return gaps;
+	}
+
+	/**
+	 * Reorder buffer of the URB delivered messages of one sender. Message id is
+	 * kept in slot id modulo the window, the few that are a window or more ahead
+	 * of the next expected ID wait in an overflow map. A message is dropped as
+	 * soon as it is delivered, only the number of delivered messages is kept.
+	 *
+	 * Any thread may add messages and call deliver(). One of them at a time,
+	 * the one that wins the CAS on draining, delivers the run of consecutive
+	 * messages that are ready: it logs them and advances the vector clock once
+	 * for the whole run, then moves the cursor past it. Each message is thus
+	 * delivered exactly once and in order.
 	 */
 	public class CanDeliver {
-		// Received messages so far
-		private ConcurrentHashMap<Integer, Message> receivedMesgs = new ConcurrentHashMap<Integer, Message>();
+		private AtomicReferenceArray<Message> slots;
+		private int mask;
+		private ConcurrentHashMap<Integer, Message> overflow = new ConcurrentHashMap<Integer, Message>();
+
+		// ID of the next message to deliver
+		private AtomicInteger cursor = new AtomicInteger(1);
+
+		// Number of messages waiting in the buffer
+		private AtomicInteger buffered = new AtomicInteger(0);
+
+		// Set while a thread delivers
+		private AtomicBoolean draining = new AtomicBoolean(false);
 
-		// How many messages have been delivered in order
-		private AtomicInteger alreadyDelivered = new AtomicInteger(1);
+		// Time of the last delivery, for the metrics
+		private long lastDeliveredAt = -1;
+
+		public CanDeliver() {
+			int size = Integer.highestOneBit(Math.max(2, Config.FIFO_WINDOW - 1)) << 1;
+			this.slots = new AtomicReferenceArray<Message>(size);
+			this.mask = size - 1;
+		}
 
 		public void addDeliverMsg(Message m) {
 			// Add new URB delivered message
-			this.receivedMesgs.put(m.getId(), m);
+			int id = m.getId();
+			if (id < cursor.get())
+				return;
+
+			boolean added = false;
+			int index = id & mask;
+			while (id - cursor.get() < slots.length()) {
+				Message old = slots.get(index);
+				if (old == null) {
+					if (slots.compareAndSet(index, null, m)) {
+						added = true;
+						break;
+					}
+				} else if (old.getId().equals(id)) {
+					return;
+				} else if (old.getId() < cursor.get()) {
+					// Delivered, the drainer has not cleared its slot yet
+					slots.compareAndSet(index, old, null);
+				} else {
+					break;
+				}
+			}
+			if (!added) {
+				if (overflow.putIfAbsent(id, m) != null)
+					return;
+			}
+			buffered.incrementAndGet();
+
+			// Delivered meanwhile, this was a duplicate
+			if (id < cursor.get())
+				remove(m);
 		}
 
-		public Message getMsg(Integer id) {
-			// Get URB delivered message based on ID
-			return receivedMesgs.get(id);
+		/**
+		 * Remove a message from the buffer, if it is still there.
+		 */
+		private void remove(Message m) {
+			if (slots.compareAndSet(m.getId() & mask, m, null) || overflow.remove(m.getId(), m))
+				buffered.decrementAndGet();
 		}
 
-		public void deliver() {
-			// FIFO deliver
+		public int getGapCount() {
+			return this.buffered.get();
+		}
 
-			// Start with the current highest delivered message
-			Integer startIdx = this.alreadyDelivered.intValue();
-			Message msg = receivedMesgs.get(startIdx);
+		public boolean isDelivered(Integer id) {
+			return id < this.cursor.get();
+		}
 
-			// Loop until all currently deliverable messages are logged and delivered
+		public Message getMsg(Integer id) {
+			// Get URB delivered message based on ID
+			Message m = slots.get(id & mask);
+			if (m != null && m.getId().equals(id))
+				return m;
+			return overflow.isEmpty() ? null : overflow.get(id);
+		}
 
-			while (msg != null) {
-				this.alreadyDelivered.getAndIncrement();
-				startIdx++;
-				FIFOBroadcast.this.p.VClock.lock();
-				FIFOBroadcast.this.p.log("d " + msg.getSender() + " " + msg.getM() + "\n");
+		public void deliver() {
+			// FIFO deliver, unless another thread is already delivering: it checks
+			// again for ready messages before it stops
+			while (isReady()) {
+				if (!draining.compareAndSet(false, true))
+					return;
+				try {
+					drain();
+				} finally {
+					draining.set(false);
+				}
+			}
+		}
 
-				// Increase vector clock
-				Integer senderIndex = msg.getSender() - 1;
+		/**
+		 * @return True if the next expected message is in the buffer.
+		 */
+		private boolean isReady() {
+			return getMsg(cursor.get()) != null;
+		}
 
-				FIFOBroadcast.this.p.increaseVectorClock(senderIndex);
+		/**
+		 * Deliver the run of consecutive messages from the cursor. Called by one
+		 * thread at a time.
+		 */
+		private void drain() {
+			int next = cursor.get();
+			ArrayList<Message> run = new ArrayList<Message>();
+			Message msg;
+			while ((msg = getMsg(next)) != null) {
+				run.add(msg);
+				next++;
+			}
+			if (run.isEmpty())
+				return;
+
+			// Log the whole run and advance the vector clock once
+			Integer senderIndex = run.get(0).getSender() - 1;
+			FIFOBroadcast.this.p.VClock.lock();
+			try {
+				for (Message m : run)
+					FIFOBroadcast.this.p.log("d " + m.getSender() + " " + m.getM() + "\n");
+				FIFOBroadcast.this.p.recordDelivery(run.get(0).getSender(), run.get(0).getId(), run.size());
+				FIFOBroadcast.this.p.increaseVectorClock(senderIndex, run.size());
+			} finally {
 				FIFOBroadcast.this.p.VClock.unlock();
-				msg = receivedMesgs.get(startIdx);
+			}
 
+			// Move the cursor past the run, then drop the delivered messages. A
+			// message a window later may find its slot not cleared yet and clears
+			// it itself.
+			cursor.compareAndSet(run.get(0).getId(), next);
+			for (Message m : run)
+				remove(m);
+
+			// Wake up the causal dependents of the run and drop the acknowledgments
+			// of the messages that are stable
+			FIFOBroadcast.this.p.getLCB().delivered(senderIndex + 1, next - 1);
+			FIFOBroadcast.this.p.getAckTable().delivered(senderIndex + 1, next - 1);
+
+			long now = FIFOBroadcast.this.p.getTransport().nanoTime();
+			for (Message m : run) {
+				FIFOBroadcast.this.p.getMetrics().countDelivered(m, Math.max(m.getUrbAt(), lastDeliveredAt), now);
+				this.lastDeliveredAt = now;
 			}
 		}
 	}
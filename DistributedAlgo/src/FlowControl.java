@@ -0,0 +1,280 @@
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Window based flow control of the messages a process broadcasts.
+ *
+ * Every destination has a congestion window, in messages, and the number of
+ * messages of this process sent to it and not acknowledged yet. A broadcast
+ * goes to every destination, but uniform reliable broadcast only waits for a
+ * majority of them, so it may send as many messages as a majority of the
+ * destinations have room for. A crashed or slow minority does not stop the
+ * broadcasts before it is suspected; its messages stay with the
+ * retransmission wheel, and suspected destinations are left out. Windows
+ * adapt to loss like TCP Reno: they grow by one message per acknowledged
+ * message up to the slow start threshold, then by one message per window,
+ * and are halved when a message has to be retransmitted, at most once per
+ * window of messages.
+ *
+ * Only the original broadcasts of this process take credit, and a destination
+ * only counts the ones that were sent to it (with gossip, most destinations
+ * get them from relays). Relays of other processes' messages are bounded by
+ * the windows of those processes.
+ */
+public class FlowControl {
+	private Process p;
+	private RetransmissionWheel retransmissions;
+
+	private ReentrantLock lock = new ReentrantLock();
+	private Condition credit = lock.newCondition();
+	private HashMap<InetSocketAddress, Window> windows = new HashMap<InetSocketAddress, Window>();
+
+	// Messages granted so far: the IDs 1 .. granted have been broadcast
+	private int granted = 0;
+
+	// Called when credit may have become available, for callers that do not block
+	private Runnable listener;
+
+	/**
+	 * @param p               - Process whose broadcasts are controlled
+	 * @param retransmissions - Wheel that knows the suspected destinations
+	 */
+	public FlowControl(Process p, RetransmissionWheel retransmissions) {
+		this.p = p;
+		this.retransmissions = retransmissions;
+	}
+
+	/**
+	 * @return Number of messages that can be broadcast now.
+	 */
+	public int available() {
+		lock.lock();
+		try {
+			return availableLocked();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take credit for up to count messages without waiting.
+	 *
+	 * @param count - Number of messages the caller wants to broadcast
+	 * @return Number of messages granted, possibly 0. They must be broadcast.
+	 */
+	public int tryAcquire(int count) {
+		lock.lock();
+		try {
+			int grant = Math.min(count, availableLocked());
+			if (grant > 0)
+				grantLocked(grant);
+			return grant;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take credit for up to count messages, waiting until at least one can be
+	 * sent.
+	 *
+	 * @param count - Number of messages the caller wants to broadcast
+	 * @return Number of messages granted, at least 1. They must be broadcast.
+	 */
+	public int acquire(int count) throws InterruptedException {
+		lock.lock();
+		try {
+			int grant;
+			// Wake up on every tick as well: a destination may have been suspected
+			while ((grant = Math.min(count, availableLocked())) == 0)
+				credit.await(Config.WHEEL_TICK, TimeUnit.MILLISECONDS);
+			grantLocked(grant);
+			return grant;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Continue after the broadcasts of a previous run.
+	 *
+	 * @param granted - ID of the last message broadcast before the restart
+	 */
+	public void restore(int granted) {
+		lock.lock();
+		try {
+			this.granted = granted;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Messages of this process were sent to destination for the first time.
+	 *
+	 * @param destination - Address of the destination
+	 * @param count       - Number of messages
+	 */
+	public void sent(InetSocketAddress destination, int count) {
+		lock.lock();
+		try {
+			windowFor(destination).inflight += count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Destination acknowledged messages of this process for the first time.
+	 *
+	 * @param destination - Address of the destination
+	 * @param ids         - Number of acknowledged messages
+	 */
+	public void acknowledged(InetSocketAddress destination, int ids) {
+		lock.lock();
+		try {
+			Window w = windowFor(destination);
+			w.inflight = Math.max(0, w.inflight - ids);
+			for (int i = 0; i < ids; i++)
+				w.cwnd += w.cwnd < w.ssthresh ? 1 : 1 / w.cwnd;
+			w.cwnd = Math.min(w.cwnd, Config.WINDOW_MAX);
+			credit.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		notifyListener();
+	}
+
+	/**
+	 * A message of this process had to be sent again to destination.
+	 *
+	 * @param destination - Address of the destination
+	 * @param id          - ID of the retransmitted message
+	 */
+	public void lost(InetSocketAddress destination, int id) {
+		lock.lock();
+		try {
+			Window w = windowFor(destination);
+
+			// Losses of messages sent before the last decrease were caused by the
+			// same congestion
+			if (id <= w.recover)
+				return;
+			w.ssthresh = Math.max(Config.WINDOW_MIN, w.cwnd / 2);
+			w.cwnd = w.ssthresh;
+			w.recover = granted;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wake up the waiting callers once per tick, for the destinations that were
+	 * suspected in between.
+	 */
+	public void tick() {
+		lock.lock();
+		try {
+			credit.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		notifyListener();
+	}
+
+	/**
+	 * @param listener - Called when credit may have become available
+	 */
+	public void setListener(Runnable listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return Smallest congestion window of the destinations that are not
+	 *         suspected, in messages.
+	 */
+	public int getWindow() {
+		lock.lock();
+		try {
+			double min = Config.WINDOW_MAX;
+			for (InetSocketAddress destination : p.getProcesses()) {
+				if (!retransmissions.isSuspected(destination))
+					min = Math.min(min, windowFor(destination).cwnd);
+			}
+			return (int) min;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Largest number of messages of this process that a destination has
+	 *         not acknowledged yet.
+	 */
+	public int getInflight() {
+		lock.lock();
+		try {
+			int max = 0;
+			for (Window w : windows.values())
+				max = Math.max(max, w.inflight);
+			return max;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private int availableLocked() {
+		if (p.getProcesses() == null)
+			return 0;
+
+		int[] free = new int[p.getProcesses().size()];
+		int alive = 0;
+		for (InetSocketAddress destination : p.getProcesses()) {
+			Window w = windowFor(destination);
+
+			// The outstanding messages of a suspected destination were dropped
+			if (retransmissions.isSuspected(destination)) {
+				w.inflight = 0;
+				continue;
+			}
+			free[alive++] = (int) w.cwnd - w.inflight;
+		}
+		if (alive == 0)
+			return Config.WINDOW_MAX;
+
+		// Room of the destination that completes a majority, counting from the
+		// one with the most room
+		Arrays.sort(free, 0, alive);
+		int majority = free.length / 2 + 1;
+		return Math.max(0, free[Math.max(0, alive - majority)]);
+	}
+
+	private void grantLocked(int count) {
+		granted += count;
+	}
+
+	private Window windowFor(InetSocketAddress destination) {
+		return windows.computeIfAbsent(destination, d -> new Window());
+	}
+
+	private void notifyListener() {
+		if (listener != null)
+			listener.run();
+	}
+
+	/**
+	 * Congestion window of one destination.
+	 */
+	private static class Window {
+		private double cwnd = Config.WINDOW_INITIAL;
+		private double ssthresh = Config.WINDOW_MAX;
+		private int inflight = 0;
+
+		// Last ID granted when the window was last decreased
+		private int recover = 0;
+	}
+}
@@ -0,0 +1,100 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Received datagram kept in its pooled buffer so that the relays of its
+ * message can be sent without encoding it again. Only the header of a relay
+ * differs from the received one (flags, source and destination), the body
+ * (text and vector clocks) is copied as it is, see
+ * BinaryMessageCodec.encodeRelay().
+ *
+ * The frame counts its references: the worker that received it holds one
+ * while the process handles the message and every queued relay holds one
+ * until it is sent. The buffer goes back to the pool with the last one, and
+ * the frame cannot be retained again afterwards; a later retransmission of
+ * the relay encodes the message instead.
+ *
+ * A packet of several messages (see Coalescer) is a frame too, and the frame
+ * of each of its messages holds a reference to it instead of a buffer of the
+ * pool: the packet goes back to the pool with the last of its messages.
+ */
+public class Frame {
+	private BufferPool pool;
+	private ByteBuffer buffer;
+
+	// Packet the buffer is a slice of, null if the buffer comes from the pool
+	private Frame parent;
+
+	// Bytes of the body in the buffer
+	private int bodyStart;
+	private int bodyEnd;
+
+	private AtomicInteger references = new AtomicInteger(1);
+
+	/**
+	 * @param pool      - Pool the buffer is released to
+	 * @param buffer    - Buffer that holds the datagram
+	 * @param bodyStart - Position of the first byte of the body
+	 * @param bodyEnd   - Position after the last byte of the body
+	 */
+	public Frame(BufferPool pool, ByteBuffer buffer, int bodyStart, int bodyEnd) {
+		this.pool = pool;
+		this.buffer = buffer;
+		this.bodyStart = bodyStart;
+		this.bodyEnd = bodyEnd;
+	}
+
+	/**
+	 * @param parent    - Packet the buffer is a slice of, whose reference the
+	 *                  frame takes over
+	 * @param buffer    - Slice of the packet that holds the message
+	 * @param bodyStart - Position of the first byte of the body
+	 * @param bodyEnd   - Position after the last byte of the body
+	 */
+	public Frame(Frame parent, ByteBuffer buffer, int bodyStart, int bodyEnd) {
+		this((BufferPool) null, buffer, bodyStart, bodyEnd);
+		this.parent = parent;
+	}
+
+	/**
+	 * Take a reference, unless the buffer was already released.
+	 *
+	 * @return True if the frame can be used until release() is called.
+	 */
+	public boolean retain() {
+		while (true) {
+			int count = references.get();
+			if (count == 0)
+				return false;
+			if (references.compareAndSet(count, count + 1))
+				return true;
+		}
+	}
+
+	/**
+	 * Drop a reference. The last one releases the buffer to the pool, or the
+	 * reference to the packet.
+	 */
+	public void release() {
+		if (references.decrementAndGet() == 0) {
+			if (parent != null)
+				parent.release();
+			else
+				pool.release(buffer);
+		}
+	}
+
+	/**
+	 * @return View of the body, for a holder of a reference. Several threads
+	 *         may read the body at once, each through its own view.
+	 */
+	public ByteBuffer getBody() {
+		ByteBuffer body = buffer.duplicate();
+		body.limit(bodyEnd).position(bodyStart);
+		return body;
+	}
+
+	public int getBodySize() {
+		return bodyEnd - bodyStart;
+	}
+}
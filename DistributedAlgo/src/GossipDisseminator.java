@@ -0,0 +1,265 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Epidemic dissemination. A broadcast or relay is pushed to Config.GOSSIP_FANOUT
+ * random processes instead of all of them, so each process sends O(log n)
+ * copies of a message instead of O(n). Pushes still go over the perfect links
+ * and are retransmitted until acknowledged.
+ *
+ * Every Config.GOSSIP_INTERVAL milliseconds a process sends a digest of the
+ * IDs it has of every sender to a few random processes (anti-entropy). The
+ * receiver of a digest
+ *
+ * - records the IDs as acknowledged by the process that sent it, which is how
+ *   acknowledgments reach the processes that did not push to each other: the
+ *   majority rule of UniformReliableBroadcast is unchanged
+ * - sends it up to Config.GOSSIP_REPAIR messages it lacks
+ * - answers with its own digest if it lacks messages itself
+ *
+ * Messages are kept for repairs until every process that is not suspected is
+ * known to have them.
+ */
+public class GossipDisseminator implements Disseminator {
+	private Process p;
+	private Random random;
+	private int fanout;
+
+	// Messages this process has and may have to repair, by sender and ID
+	private ConcurrentHashMap<Long, Message> stored = new ConcurrentHashMap<Long, Message>();
+
+	// IDs this process has of each sender
+	private ConcurrentHashMap<Integer, RangeSet> have = new ConcurrentHashMap<Integer, RangeSet>();
+
+	// IDs each process is known to have of each sender, by process ID
+	private ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, RangeSet>> known = new ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, RangeSet>>();
+
+	// Stored messages of each sender below this ID have been dropped, 1 if none
+	private ConcurrentHashMap<Integer, Integer> collected = new ConcurrentHashMap<Integer, Integer>();
+
+	private long nextRound;
+
+	/**
+	 * @param p - Process whose messages are disseminated
+	 */
+	public GossipDisseminator(Process p) {
+		this.p = p;
+		this.random = new Random(p.getTransport().nanoTime() + p.getProcessId());
+		this.nextRound = p.getTransport().nanoTime();
+	}
+
+	/**
+	 * @return Number of processes each message is pushed to.
+	 */
+	public int getFanout() {
+		if (fanout == 0) {
+			int n = p.getProcesses().size();
+			fanout = Config.GOSSIP_FANOUT > 0 ? Config.GOSSIP_FANOUT : (int) Math.ceil(Math.log(n)) + 1;
+		}
+		return fanout;
+	}
+
+	@Override
+	public void sendMessage(ArrayList<Message> copies) throws IOException {
+		ArrayList<Message> others = new ArrayList<Message>();
+		for (Message m : copies) {
+			if (isSelf(m.getDestinationInetAddr(), m.getDestinationPort()))
+				p.sendMessage(m);
+			else
+				others.add(m);
+		}
+
+		Collections.shuffle(others, random);
+		for (int i = 0; i < Math.min(getFanout(), others.size()); i++)
+			p.sendMessage(others.get(i));
+	}
+
+	@Override
+	public void received(Message single) {
+		int sender = single.getSender();
+		int id = single.getId();
+		if (!rangesOf(have, sender).add(id, id).isEmpty() && id >= collected.getOrDefault(sender, 1))
+			stored.put(key(sender, id), single);
+	}
+
+	@Override
+	public void digestReceived(Message digest) {
+		int peer = digest.getSender();
+		if (peer < 1 || peer > p.getProcesses().size() || peer == p.getProcessId())
+			return;
+
+		InetSocketAddress peerAddress = p.getProcesses().get(peer - 1);
+		ConcurrentHashMap<Integer, RangeSet> peerHas = known.computeIfAbsent(peer,
+				k -> new ConcurrentHashMap<Integer, RangeSet>());
+		ArrayList<Integer> values = digest.getDigest();
+		boolean lacking = false;
+		int repairs = 0;
+
+		// Per sender: cumulative ID, number of ranges above it, their bounds
+		int i = 0;
+		for (int sender = 1; sender <= p.getProcesses().size() && i + 1 < values.size(); sender++) {
+			ArrayList<Integer> ranges = new ArrayList<Integer>();
+			if (values.get(i) > 0) {
+				ranges.add(1);
+				ranges.add(values.get(i));
+			}
+			int count = values.get(i + 1);
+			i += 2;
+			for (int r = 0; r < count && i + 1 < values.size(); r++, i += 2) {
+				ranges.add(values.get(i));
+				ranges.add(values.get(i + 1));
+			}
+
+			// The IDs the peer has for the first time count as its acknowledgments
+			RangeSet peerIds = rangesOf(peerHas, sender);
+			RangeSet ownIds = rangesOf(have, sender);
+			boolean acknowledged = false;
+			for (int r = 0; r + 1 < ranges.size(); r += 2) {
+				for (int[] added : peerIds.add(ranges.get(r), ranges.get(r + 1))) {
+					for (int id = added[0]; id <= added[1]; id++)
+						p.recordAck(sender, id, peer);
+					acknowledged = true;
+				}
+				lacking |= !ownIds.containsAll(ranges.get(r), ranges.get(r + 1));
+			}
+			if (acknowledged)
+				p.getLCB().acknowledged(sender);
+
+			repairs += repair(peerAddress, sender, peerIds, ownIds, Config.GOSSIP_REPAIR - repairs);
+		}
+
+		// Answer a periodic digest, not an answer, to pull what the peer has
+		if (lacking && digest.getId() == 0)
+			sendDigest(peerAddress, 1);
+	}
+
+	/**
+	 * Send a peer the stored messages of sender that it does not have.
+	 *
+	 * @param limit - Largest number of messages to send
+	 * @return Number of messages sent.
+	 */
+	private int repair(InetSocketAddress peer, int sender, RangeSet peerIds, RangeSet ownIds, int limit) {
+		int sent = 0;
+		int from = Math.max(peerIds.getCumulative() + 1, collected.getOrDefault(sender, 1));
+		int to = ownIds.getCumulative();
+		ArrayList<Integer> above = ownIds.getSelectiveRanges(Config.MAX_SACK_RANGES);
+		int last = above.isEmpty() ? to : above.get(above.size() - 1);
+
+		for (int id = from; id <= last && sent < limit; id++) {
+			if (peerIds.contains(id) || !ownIds.contains(id))
+				continue;
+			Message m = stored.get(key(sender, id));
+			if (m == null || p.isOutstanding(peer, sender, id))
+				continue;
+			p.sendMessage(p.createRelay(m, peer));
+			sent++;
+		}
+		return sent;
+	}
+
+	@Override
+	public void tick() {
+		// No round before the membership is known
+		ArrayList<InetSocketAddress> processes = p.getProcesses();
+		if (processes == null)
+			return;
+
+		long now = p.getTransport().nanoTime();
+		if (now < nextRound)
+			return;
+		nextRound = now + Config.GOSSIP_INTERVAL * 1000000L;
+
+		ArrayList<InetSocketAddress> others = new ArrayList<InetSocketAddress>();
+		for (InetSocketAddress address : processes) {
+			if (!isSelf(address.getAddress(), address.getPort()))
+				others.add(address);
+		}
+		Collections.shuffle(others, random);
+		for (int i = 0; i < Math.min(getFanout(), others.size()); i++)
+			sendDigest(others.get(i), 0);
+
+		collect();
+	}
+
+	/**
+	 * @param destination - Process the digest is sent to
+	 * @param answer      - 1 if it answers a digest, 0 otherwise
+	 */
+	private void sendDigest(InetSocketAddress destination, int answer) {
+		ArrayList<InetSocketAddress> processes = p.getProcesses();
+		if (processes == null)
+			return;
+
+		ArrayList<Integer> values = new ArrayList<Integer>();
+		for (int sender = 1; sender <= processes.size(); sender++) {
+			RangeSet ids = have.get(sender);
+			if (ids == null) {
+				values.add(0);
+				values.add(0);
+				continue;
+			}
+			ArrayList<Integer> above = ids.getSelectiveRanges(Config.MAX_SACK_RANGES);
+			values.add(ids.getCumulative());
+			values.add(above.size() / 2);
+			values.addAll(above);
+		}
+
+		Message digest = new Message("", destination.getPort(), destination.getAddress(), p.getPort(), p.getIp(),
+				answer, false, false, p.getProcessId(), null, new VectorClock(0));
+		digest.setDigest(values);
+		p.sendMessage(digest);
+	}
+
+	/**
+	 * Drop the stored messages that every process that is not suspected has.
+	 */
+	private void collect() {
+		ArrayList<InetSocketAddress> processes = p.getProcesses();
+		if (processes == null)
+			return;
+
+		for (int sender = 1; sender <= processes.size(); sender++) {
+			int floor = Integer.MAX_VALUE;
+			for (int peer = 1; peer <= processes.size(); peer++) {
+				if (peer == p.getProcessId() || p.isSuspected(peer))
+					continue;
+				ConcurrentHashMap<Integer, RangeSet> peerHas = known.get(peer);
+				RangeSet ids = peerHas == null ? null : peerHas.get(sender);
+				floor = Math.min(floor, ids == null ? 0 : ids.getCumulative());
+			}
+
+			int from = collected.getOrDefault(sender, 1);
+			if (floor == Integer.MAX_VALUE || floor < from)
+				continue;
+			for (int id = from; id <= floor; id++)
+				stored.remove(key(sender, id));
+			collected.put(sender, floor + 1);
+		}
+	}
+
+	/**
+	 * @return Number of messages kept for repairs.
+	 */
+	public int getStoredCount() {
+		return stored.size();
+	}
+
+	private boolean isSelf(InetAddress address, Integer port) {
+		return port.equals(p.getPort()) && address.equals(p.getIp());
+	}
+
+	private static RangeSet rangesOf(ConcurrentHashMap<Integer, RangeSet> map, int sender) {
+		RangeSet ids = map.get(sender);
+		return ids != null ? ids : map.computeIfAbsent(sender, s -> new RangeSet());
+	}
+
+	private static long key(int sender, int id) {
+		return ((long) sender << 32) | (id & 0xFFFFFFFFL);
+	}
+}
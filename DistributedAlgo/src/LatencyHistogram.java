@@ -0,0 +1,80 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in nanoseconds with a bounded relative error, in the
+ * manner of HdrHistogram. Values below 256 have their own bucket, every power
+ * of two above is split into 128 buckets, so a recorded value is off by less
+ * than 1%. Recording is a few shifts and an atomic increment.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BITS = 7;
+	private static final int SUB_COUNT = 1 << SUB_BITS;
+	private static final int LINEAR = SUB_COUNT * 2;
+
+	// Largest value, about 18 minutes; longer latencies are counted as this
+	private static final long MAX_VALUE = (1L << 40) - 1;
+
+	private AtomicLongArray counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+	private LongAdder count = new LongAdder();
+	private LongAdder sum = new LongAdder();
+
+	/**
+	 * @param nanos - Latency to record, negative values are ignored
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			return;
+		long value = Math.min(nanos, MAX_VALUE);
+		counts.incrementAndGet(index(value));
+		count.increment();
+		sum.add(value);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return Sum of the recorded values in nanoseconds.
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * @param quantile - Quantile between 0 and 1, e.g. 0.99
+	 * @return Upper bound of the bucket holding the quantile, 0 if empty.
+	 */
+	public long getQuantile(double quantile) {
+		long total = 0;
+		for (int i = 0; i < counts.length(); i++)
+			total += counts.get(i);
+		if (total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return upperBound(i);
+		}
+		return MAX_VALUE;
+	}
+
+	private static int index(long value) {
+		if (value < LINEAR)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return LINEAR + (shift - 1) * SUB_COUNT + (int) ((value >>> shift) - SUB_COUNT);
+	}
+
+	private static long upperBound(int index) {
+		if (index < LINEAR)
+			return index;
+		int shift = (index - LINEAR) / SUB_COUNT + 1;
+		long sub = (index - LINEAR) % SUB_COUNT + SUB_COUNT;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,53 @@
+import java.net.InetSocketAddress;
+import java.util.Objects;
+
+/**
+ * Identifies one message on one perfect link: the destination it is sent to,
+ * the process that broadcast it originally and its ID.
+ */
+public class LinkKey {
+	private InetSocketAddress destination;
+	private int sender;
+	private int id;
+
+	public LinkKey(InetSocketAddress destination, int sender, int id) {
+		this.destination = destination;
+		this.sender = sender;
+		this.id = id;
+	}
+
+	/**
+	 * @param m - Message that is sent
+	 * @return Key of the message on the link to its destination.
+	 */
+	public static LinkKey forMessage(Message m) {
+		return new LinkKey(new InetSocketAddress(m.getDestinationInetAddr(), m.getDestinationPort()), m.getSender(),
+				m.getId());
+	}
+
+	public InetSocketAddress getDestination() {
+		return destination;
+	}
+
+	public int getSender() {
+		return sender;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(destination, sender, id);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof LinkKey))
+			return false;
+
+		LinkKey key = (LinkKey) o;
+		return id == key.id && sender == key.sender && destination.equals(key.destination);
+	}
+}
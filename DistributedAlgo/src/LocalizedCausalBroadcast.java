@@ -1,28 +1,77 @@
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
 
+/**
+ * Localized causal broadcast on top of FIFO broadcast. A received message is
+ * pending until every message in its (masked) vector clock is delivered.
+ *
+ * Each pending message counts its unmet dependencies: the entries of its
+ * clock above what has been delivered. It waits in the list of the (sender,
+ * ID) of each of them, and a delivery only wakes the messages in the lists of
+ * the IDs it delivered. A message whose count drops to zero marks its sender,
+ * whose next expected message is then given to FIFO.
+ */
 public class LocalizedCausalBroadcast {
 	private Process p;
 	private FIFOBroadcast fifoBC;
-	private CopyOnWriteArrayList<Message> pending;
 	private DeliverThread lcbDeliver;
 
+	// Number of consecutive messages broadcast in one datagram
+	private Integer batchSize;
+
+	// Pending messages of each sender, by message ID
+	private HashMap<Integer, HashMap<Integer, Pending>> pending;
+
+	// Pending messages that wait for the delivery of a message, by its sender
+	// and ID
+	private HashMap<Integer, HashMap<Integer, ArrayList<Pending>>> waiting;
+
+	// Number of delivered messages of each sender, by index, as reported to
+	// delivered(). The dependencies are counted against it.
+	private int[] known;
+
+	// Delivering thread of each sender, by index
+	private Drain[] drains;
+
+	// Senders that received messages or acknowledgments since the deliver
+	// thread last looked
+	private HashSet<Integer> dirty;
+	private Condition changed;
+
 	public LocalizedCausalBroadcast(Process p) {
 		this.p = p;
-		this.pending = new CopyOnWriteArrayList<Message>();
+		this.pending = new HashMap<Integer, HashMap<Integer, Pending>>();
+		this.waiting = new HashMap<Integer, HashMap<Integer, ArrayList<Pending>>>();
+		this.known = new int[p.getProcessCount()];
+		this.drains = new Drain[p.getProcessCount()];
+		for (int i = 0; i < this.drains.length; i++)
+			this.drains[i] = new Drain();
+		this.dirty = new HashSet<Integer>();
+		this.changed = p.Pendinglock.newCondition();
+		this.batchSize = Math.min(Config.BATCH_SIZE, BinaryMessageCodec.batchLimit(p.getProcessCount(), Config.MTU));
 		fifoBC = new FIFOBroadcast(p);
 		fifoBC.setProcesses();
-		lcbDeliver = new DeliverThread();
-		lcbDeliver.start();
+
+		// Without threads in the transport, or with a virtual thread per sender,
+		// messages are delivered once each received message has been handled,
+		// see deliverMarked()
+		if (p.getTransport().isThreaded() && !Threads.isVirtual()) {
+			lcbDeliver = new DeliverThread();
+			lcbDeliver.start();
+		}
 	}
 
 	public void sendMessage(Integer msgID) throws IOException {
 
 		try {
 			this.p.VClock.lock();
-			ArrayList<Integer> vectorClockCurrent = new ArrayList<Integer>(this.p.getVectorClock());
+			VectorClock vectorClockCurrent = new VectorClock(this.p.getVectorClock());
 			this.p.log("b " + msgID + "\n");
+			this.p.recordBroadcast(msgID, 1, vectorClockCurrent);
 			this.p.VClock.unlock();
 			vectorClockCurrent = this.p.mask(vectorClockCurrent);
 			ArrayList<Message> messages = this.p.createMessagesList(true, this.p.getProcessId(), vectorClockCurrent);
@@ -32,63 +81,369 @@ public class LocalizedCausalBroadcast {
 		}
 	}
 
+	/**
+	 * Broadcast the consecutive messages firstId .. firstId + count - 1 as one
+	 * batch. Each message keeps its own vector clock, taken when it is logged.
+	 *
+	 * @param firstId - ID of the first message of the batch
+	 * @param count   - Number of messages in the batch
+	 */
+	public void sendBatch(Integer firstId, Integer count) throws IOException {
+		ArrayList<VectorClock> clocks = new ArrayList<VectorClock>();
+
+		this.p.VClock.lock();
+		try {
+			for (Integer i = 0; i < count; i++) {
+				clocks.add(new VectorClock(this.p.getVectorClock()));
+				this.p.log("b " + (firstId + i) + "\n");
+			}
+			this.p.recordBroadcast(firstId, count, clocks.get(0));
+		} finally {
+			this.p.VClock.unlock();
+		}
+
+		for (VectorClock clock : clocks)
+			this.p.mask(clock);
+		ArrayList<Message> messages = this.p.createBatchList(this.p.getProcessId(), firstId, clocks);
+		this.fifoBC.sendMessage(messages);
+	}
+
+	/**
+	 * Broadcast again messages of this process that were logged before a
+	 * restart, with the vector clock they were broadcast with. The ones this
+	 * process delivered already are left out.
+	 *
+	 * @param firstId - ID of the first message
+	 * @param count   - Number of messages
+	 * @param clock   - Vector clock of the messages, before masking
+	 */
+	public void resend(Integer firstId, Integer count, VectorClock clock) throws IOException {
+		int from = Math.max(firstId, this.p.getVectorClock().get(this.p.getProcessId() - 1) + 1);
+		ArrayList<VectorClock> clocks = new ArrayList<VectorClock>();
+		for (int id = from; id < firstId + count; id++)
+			clocks.add(this.p.mask(new VectorClock(clock)));
+		if (clocks.isEmpty())
+			return;
+
+		ArrayList<Message> messages = this.p.createBatchList(this.p.getProcessId(), from, clocks);
+		this.fifoBC.sendMessage(messages);
+	}
+
+	/**
+	 * Continue after the messages delivered before a restart.
+	 *
+	 * @param delivered - Number of messages delivered of each sender, by index
+	 */
+	public void restore(int[] delivered) {
+		fifoBC.restore(delivered);
+		this.p.Pendinglock.lock();
+		try {
+			this.known = delivered.clone();
+		} finally {
+			this.p.Pendinglock.unlock();
+		}
+	}
+
+	/**
+	 * Stop the deliver thread.
+	 */
+	public void close() {
+		if (lcbDeliver != null)
+			lcbDeliver.interrupt();
+	}
+
+	/**
+	 * @return Number of received messages that have not been delivered yet.
+	 */
+	public int getPendingCount() {
+		this.p.Pendinglock.lock();
+		try {
+			int count = 0;
+			for (HashMap<Integer, Pending> messages : this.pending.values())
+				count += messages.size();
+			return count;
+		} finally {
+			this.p.Pendinglock.unlock();
+		}
+	}
+
+	public int getFifoGapCount() {
+		return fifoBC.getGapCount();
+	}
+
+	public Integer getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Add a received message to the pending messages, waiting for the messages
+	 * in its vector clock that have not been delivered yet. If there are none,
+	 * wake up the deliver thread to check its sender again.
+	 *
+	 * @param message - Received broadcast message
+	 */
 	public void deliver(Message message) {
+		Integer sender = message.getSender();
 		this.p.Pendinglock.lock();
 		try {
-			this.pending.add(message);
+			// Messages that have already been delivered are not pending anymore
+			if (message.getId() <= this.p.getVectorClock().get(sender - 1))
+				return;
+
+			HashMap<Integer, Pending> messages = this.pending.computeIfAbsent(sender,
+					s -> new HashMap<Integer, Pending>());
+			if (messages.containsKey(message.getId()))
+				return;
+			Pending entry = new Pending(message);
+			messages.put(message.getId(), entry);
+
+			VectorClock clock = message.getVectorClock();
+			for (int i = 0; i < clock.size(); i++) {
+				if (clock.get(i) > this.known[i]) {
+					this.waiting.computeIfAbsent(i + 1, s -> new HashMap<Integer, ArrayList<Pending>>())
+							.computeIfAbsent(clock.get(i), id -> new ArrayList<Pending>()).add(entry);
+					entry.unmet++;
+				}
+			}
+
+			if (entry.unmet == 0) {
+				this.dirty.add(sender);
+				this.changed.signal();
+			}
 		} finally {
 			this.p.Pendinglock.unlock();
 		}
 	}
 
-	public boolean canLCBdeliver(Message message) {
+	/**
+	 * FIFO delivered the messages of sender up to lastId. Wake up the pending
+	 * messages that waited for them and mark the senders of the ones that have
+	 * no unmet dependency left. The next message of sender itself is checked by
+	 * the thread that delivered these.
+	 *
+	 * @param sender - Process ID of the sender
+	 * @param lastId - ID of its last delivered message
+	 */
+	public void delivered(Integer sender, int lastId) {
+		this.p.Pendinglock.lock();
+		try {
+			int from = this.known[sender - 1];
+			if (lastId <= from)
+				return;
+			this.known[sender - 1] = lastId;
 
-		// Compare vector clocks of process and message to see if we can deliver
+			HashMap<Integer, ArrayList<Pending>> waiters = this.waiting.get(sender);
+			for (int id = from + 1; waiters != null && !waiters.isEmpty() && id <= lastId; id++) {
+				ArrayList<Pending> entries = waiters.remove(id);
+				if (entries == null)
+					continue;
+				for (Pending entry : entries) {
+					if (--entry.unmet == 0)
+						this.dirty.add(entry.message.getSender());
+				}
+			}
+			if (!this.dirty.isEmpty())
+				this.changed.signal();
+		} finally {
+			this.p.Pendinglock.unlock();
+		}
+	}
 
-		boolean canLCBdeliver = true;
+	/**
+	 * Wake up the deliver thread because new acknowledgments arrived for
+	 * messages of sender.
+	 *
+	 * @param sender - Process ID that broadcast the acknowledged messages
+	 */
+	public void acknowledged(Integer sender) {
+		this.p.Pendinglock.lock();
+		try {
+			this.dirty.add(sender);
+			this.changed.signal();
+		} finally {
+			this.p.Pendinglock.unlock();
+		}
+	}
 
-		ArrayList<Integer> messageVC = message.getVectorClock();
-		ArrayList<Integer> processVC = p.getVectorClock();
+	/**
+	 * Deliver what can be delivered from the marked senders, on the calling
+	 * thread. Used when there is no deliver thread, once the received message
+	 * has been handled; does nothing when there is one. Several threads may
+	 * deliver at once.
+	 */
+	public void deliverMarked() {
+		if (lcbDeliver != null)
+			return;
 
-		if (processVC.get(message.getSender() - 1) != message.getId() - 1) {
-			canLCBdeliver = false;
+		HashSet<Integer> senders;
+		this.p.Pendinglock.lock();
+		try {
+			senders = new HashSet<Integer>(this.dirty);
+			this.dirty.clear();
+		} finally {
+			this.p.Pendinglock.unlock();
 		}
-		for (Integer i = 0; i < messageVC.size(); i++) {
-			if (messageVC.get(i) > processVC.get(i)) {
-				canLCBdeliver = false;
-				break;
+		deliverAll(senders);
+	}
+
+	/**
+	 * Deliver the pending messages of the given senders. A delivery marks the
+	 * senders of the messages it unblocked, which are checked next, until no
+	 * sender is marked.
+	 *
+	 * @param senders - Senders to check, emptied on return
+	 */
+	private void deliverAll(HashSet<Integer> senders) {
+		while (!senders.isEmpty()) {
+			for (Integer sender : senders)
+				deliverFrom(sender);
+			senders.clear();
+
+			this.p.Pendinglock.lock();
+			try {
+				senders.addAll(this.dirty);
+				this.dirty.clear();
+			} finally {
+				this.p.Pendinglock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Deliver, in order, the pending messages of the given sender that have
+	 * become deliverable. Several threads may call it for the same sender: one
+	 * of them at a time, the one that wins the CAS on draining, delivers. The
+	 * others only request another pass, which it makes before it stops.
+	 *
+	 * @param sender - Process ID whose next expected message is checked
+	 * @return True if at least one message was delivered by this call.
+	 */
+	private boolean deliverFrom(Integer sender) {
+		Drain drain = this.drains[sender - 1];
+		boolean delivered = false;
+
+		drain.requested.set(true);
+		while (drain.requested.get()) {
+			if (!drain.draining.compareAndSet(false, true))
+				return delivered;
+			try {
+				drain.requested.set(false);
+				delivered |= drainFrom(sender);
+			} finally {
+				drain.draining.set(false);
+			}
+		}
+		return delivered;
+	}
+
+	/**
+	 * Deliver the run of deliverable pending messages of sender. Called by one
+	 * thread at a time for each sender.
+	 *
+	 * @return True if at least one message was delivered.
+	 */
+	private boolean drainFrom(Integer sender) {
+		boolean delivered = false;
+
+		while (true) {
+			int next = deliveredOf(sender) + 1;
+			Message message = null;
+			this.p.Pendinglock.lock();
+			try {
+				HashMap<Integer, Pending> messages = this.pending.get(sender);
+				Pending entry = messages == null ? null : messages.get(next);
+				if (entry != null && entry.unmet == 0)
+					message = entry.message;
+			} finally {
+				this.p.Pendinglock.unlock();
 			}
+
+			if (message == null)
+				return delivered;
+
+			// Not delivered if the message does not have enough acknowledgments
+			// yet, the next acknowledgment will mark the sender again
+			fifoBC.canDeliver(message);
+			if (deliveredOf(sender) < next)
+				return delivered;
+
+			this.p.Pendinglock.lock();
+			try {
+				HashMap<Integer, Pending> messages = this.pending.get(sender);
+				if (messages != null) {
+					messages.remove(next);
+					if (messages.isEmpty())
+						this.pending.remove(sender);
+				}
+			} finally {
+				this.p.Pendinglock.unlock();
+			}
+			delivered = true;
 		}
+	}
 
-		return canLCBdeliver;
+	/**
+	 * @return Number of delivered messages of sender, read under VClock.
+	 */
+	private int deliveredOf(Integer sender) {
+		this.p.VClock.lock();
+		try {
+			return this.p.getVectorClock().get(sender - 1);
+		} finally {
+			this.p.VClock.unlock();
+		}
 	}
 
+	/**
+	 * Thread that delivers pending messages when something changed. It waits
+	 * until a message or an acknowledgment marks a sender, then checks the next expected
+	 * message of that sender.
+	 */
 	public class DeliverThread extends Thread {
 
 		@Override
 		public void run() {
-			// Thread that keeps trying to deliver pending messages.
-			while (true) {
+			HashSet<Integer> senders = new HashSet<Integer>();
 
+			while (true) {
+				p.Pendinglock.lock();
 				try {
-					for (Message message : pending) {
-						if (canLCBdeliver(message)) {
-							fifoBC.canDeliver(message);
-							p.Pendinglock.lock();
-							pending.remove(message);
-							p.Pendinglock.unlock();
-						}
-					}
-				} finally {
-
-				}
-				try {
-					Thread.sleep(100);
+					while (dirty.isEmpty())
+						changed.await();
+					senders.addAll(dirty);
+					dirty.clear();
 				} catch (InterruptedException e) {
-					System.out.println("Failed to sleep in deliver thread.");
+					return;
+				} finally {
+					p.Pendinglock.unlock();
 				}
+
+				deliverAll(senders);
 			}
 		}
 	}
 
-}
\ No newline at end of file
+	/**
+	 * Turn of the threads that deliver the messages of one sender.
+	 */
+	private static class Drain {
+		// Set while a thread delivers
+		private AtomicBoolean draining = new AtomicBoolean(false);
+
+		// Set when the sender must be checked again
+		private AtomicBoolean requested = new AtomicBoolean(false);
+	}
+
+	/**
+	 * Pending message and the number of the messages in its vector clock that
+	 * have not been delivered yet.
+	 */
+	private static class Pending {
+		private Message message;
+		private int unmet = 0;
+
+		private Pending(Message message) {
+			this.message = message;
+		}
+	}
+}
@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the broadcast and delivery log of a process while it runs.
+ *
+ * log() puts lines in a bounded ring buffer, in the order they are logged. A
+ * background thread takes every line that is waiting and writes them to the
+ * file in one go (group commit), either through a buffer or into a memory
+ * mapped region of the file. When the data is forced to disk depends on the
+ * flush policy:
+ *
+ * close    - only when the writer is closed
+ * group    - after every group of lines
+ * interval - at most once every Config.LOG_FLUSH_MS milliseconds
+ */
+public class LogWriter extends Thread {
+	private FileChannel channel;
+	private boolean mapped;
+	private String flushPolicy;
+
+	private ArrayBlockingQueue<String> ring;
+	private ArrayList<String> group = new ArrayList<String>();
+	private volatile boolean closed = false;
+
+	// Buffered mode: bytes waiting to be written to the channel
+	private ByteBuffer buffer;
+
+	// Mapped mode: current region of the file and where it starts
+	private MappedByteBuffer region;
+	private long regionStart = 0;
+
+	private volatile long written = 0;
+	private long lastForce = System.nanoTime();
+
+	/**
+	 * @param fileName - Output file, truncated if it exists
+	 */
+	public LogWriter(String fileName) throws IOException {
+		this(fileName, 0);
+	}
+
+	/**
+	 * @param fileName - Output file
+	 * @param offset   - Size the output is cut to, the log goes on from there
+	 */
+	public LogWriter(String fileName, long offset) throws IOException {
+		this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		this.channel.truncate(offset);
+		this.mapped = Config.LOG_MODE.equals("mmap");
+		this.flushPolicy = Config.LOG_FLUSH;
+		this.ring = new ArrayBlockingQueue<String>(Config.LOG_CAPACITY);
+		this.written = offset;
+
+		if (mapped) {
+			this.regionStart = offset;
+			this.region = channel.map(FileChannel.MapMode.READ_WRITE, offset, Config.LOG_MAP_SIZE);
+		} else {
+			this.buffer = ByteBuffer.allocateDirect(65536);
+			this.channel.position(offset);
+		}
+	}
+
+	/**
+	 * Add a line to the log. Blocks while the ring buffer is full. Lines logged
+	 * after close() are dropped.
+	 *
+	 * @param l - Line to be written, including its line break
+	 */
+	public void log(String l) {
+		if (closed)
+			return;
+		try {
+			ring.put(l);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (!closed || !ring.isEmpty()) {
+			try {
+				String first = ring.poll(Config.LOG_FLUSH_MS, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					group.add(first);
+					ring.drainTo(group);
+					writeGroup();
+				} else {
+					flush(false);
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				System.out.println("Failed to write the log.");
+			}
+		}
+	}
+
+	/**
+	 * Write every remaining line and force the file to disk. Later log() calls
+	 * are ignored. The thread is not interrupted, that would close the channel in
+	 * the middle of a write; it notices within Config.LOG_FLUSH_MS.
+	 */
+	public void close() {
+		closed = true;
+		try {
+			this.join();
+		} catch (InterruptedException e) {
+			System.out.println("Interrupted while closing the log.");
+		}
+
+		try {
+			ring.drainTo(group);
+			writeGroup();
+			flush(true);
+			if (mapped)
+				channel.truncate(written);
+			channel.close();
+		} catch (IOException e) {
+			System.out.println("Failed to flush the log.");
+		}
+	}
+
+	/**
+	 * @return Bytes of the output written to the file so far. They survive a
+	 *         crash of the process, not necessarily one of the machine.
+	 */
+	public long getWritten() {
+		return written;
+	}
+
+	private void writeGroup() throws IOException {
+		for (String l : group) {
+			byte[] bytes = l.getBytes(StandardCharsets.US_ASCII);
+			if (mapped)
+				writeMapped(bytes);
+			else
+				writeBuffered(bytes);
+		}
+		group.clear();
+
+		if (!mapped)
+			drainBuffer();
+		flush(flushPolicy.equals("group"));
+	}
+
+	private void writeBuffered(byte[] bytes) throws IOException {
+		if (buffer.remaining() < bytes.length)
+			drainBuffer();
+		buffer.put(bytes);
+	}
+
+	private void drainBuffer() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			written += channel.write(buffer);
+		buffer.clear();
+	}
+
+	private void writeMapped(byte[] bytes) throws IOException {
+		if (region.remaining() < bytes.length) {
+			region.force();
+			regionStart += region.position();
+			region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, Config.LOG_MAP_SIZE);
+		}
+		region.put(bytes);
+		written += bytes.length;
+	}
+
+	/**
+	 * Force the written lines to disk if the flush policy asks for it.
+	 *
+	 * @param now - Force whatever the policy
+	 */
+	private void flush(boolean now) throws IOException {
+		boolean due = flushPolicy.equals("interval")
+				&& System.nanoTime() - lastForce >= Config.LOG_FLUSH_MS * 1000000L;
+		if (!now && !due)
+			return;
+
+		if (mapped)
+			region.force();
+		else
+			channel.force(false);
+		lastForce = System.nanoTime();
+	}
+}
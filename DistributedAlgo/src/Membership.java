@@ -0,0 +1,225 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.StringTokenizer;
+import java.util.zip.CRC32;
+
+/**
+ * Processes of a membership file and the processes that affect each of them.
+ *
+ * <pre>
+ * n
+ * id ip port         (n lines, one per process)
+ * id affected ...    (one line per process, in the same order)
+ * </pre>
+ *
+ * The file is read at once and split by hand, and every host is resolved only
+ * once.
+ *
+ * With Config.MEMBERSHIP_CACHE the parsed membership is kept next to the file
+ * (file name + ".bin"), with the addresses already resolved, and used instead
+ * of parsing the file as long as its content is the same. Several processes
+ * may write it at once, each one to a file of its own that is then moved in
+ * place.
+ */
+public class Membership {
+	private static final int CACHE_MAGIC = 0x44414d42;
+	private static final int CACHE_VERSION = 1;
+
+	// ID and address of each process, in the order of the file
+	private int[] ids;
+	private ArrayList<InetSocketAddress> addresses;
+
+	// IDs of the processes that affect each process, in the order of the file.
+	// Processes without a line have no entry.
+	private ArrayList<int[]> affected;
+
+	private Membership(int n) {
+		this.ids = new int[n];
+		this.addresses = new ArrayList<InetSocketAddress>(n);
+		this.affected = new ArrayList<int[]>(n);
+	}
+
+	/**
+	 * Read a membership file, from its cache if it is up to date.
+	 *
+	 * @param fileName - Membership file
+	 * @return The membership.
+	 * @throws IOException - If the file cannot be read or is not valid
+	 */
+	public static Membership load(String fileName) throws IOException {
+		byte[] text = Files.readAllBytes(new File(fileName).toPath());
+		CRC32 crc = new CRC32();
+		crc.update(text);
+
+		File cache = new File(fileName + ".bin");
+		if (Config.MEMBERSHIP_CACHE && cache.isFile()) {
+			try {
+				Membership membership = readCache(cache, text.length, crc.getValue());
+				if (membership != null)
+					return membership;
+			} catch (IOException e) {
+				// Parse the file instead, the cache is written again
+			}
+		}
+
+		Membership membership = parse(new String(text, StandardCharsets.US_ASCII));
+		if (Config.MEMBERSHIP_CACHE) {
+			try {
+				membership.writeCache(cache, text.length, crc.getValue());
+			} catch (IOException e) {
+				System.err.println("Failed to write the membership cache.");
+			}
+		}
+		return membership;
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	/**
+	 * @return Address of every process, process i at index i - 1.
+	 */
+	public ArrayList<InetSocketAddress> getAddresses() {
+		return addresses;
+	}
+
+	/**
+	 * @param processId - Process ID
+	 * @return Address of the process, null if it is not in the membership.
+	 */
+	public InetSocketAddress getAddress(int processId) {
+		for (int i = 0; i < ids.length; i++) {
+			if (ids[i] == processId)
+				return addresses.get(i);
+		}
+		return null;
+	}
+
+	/**
+	 * @param processId - Process ID
+	 * @return IDs of the processes that affect the process, read from the line
+	 *         of the process in the second part of the file.
+	 */
+	public int[] getAffected(int processId) {
+		if (processId < 1 || processId > affected.size())
+			return new int[0];
+		return affected.get(processId - 1);
+	}
+
+	private static Membership parse(String text) throws IOException {
+		String[] lines = text.split("\n");
+		int line = 0;
+		while (line < lines.length && lines[line].trim().isEmpty())
+			line++;
+		if (line == lines.length)
+			throw new IOException("Empty membership file.");
+
+		int n = Integer.parseInt(lines[line++].trim());
+		Membership membership = new Membership(n);
+		HashMap<String, InetAddress> hosts = new HashMap<String, InetAddress>();
+		for (int i = 0; i < n; i++) {
+			if (line == lines.length)
+				throw new IOException("Missing processes in the membership file.");
+			String[] params = split(lines[line++]);
+			InetAddress address = hosts.get(params[1]);
+			if (address == null) {
+				address = InetAddress.getByName(params[1]);
+				hosts.put(params[1], address);
+			}
+			membership.ids[i] = Integer.parseInt(params[0]);
+			membership.addresses.add(new InetSocketAddress(address, Integer.parseInt(params[2])));
+		}
+
+		for (int i = 0; i < n && line < lines.length; i++) {
+			String[] params = split(lines[line++]);
+			int[] affected = new int[Math.max(0, params.length - 1)];
+			for (int j = 1; j < params.length; j++)
+				affected[j - 1] = Integer.parseInt(params[j]);
+			membership.affected.add(affected);
+		}
+		return membership;
+	}
+
+	private static String[] split(String line) {
+		StringTokenizer tokens = new StringTokenizer(line);
+		String[] params = new String[tokens.countTokens()];
+		for (int i = 0; i < params.length; i++)
+			params[i] = tokens.nextToken();
+		return params;
+	}
+
+	/**
+	 * @return The cached membership, or null if it was made from another file.
+	 */
+	private static Membership readCache(File cache, int length, long crc) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cache)))) {
+			if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION || in.readInt() != length
+					|| in.readLong() != crc)
+				return null;
+
+			int n = in.readInt();
+			Membership membership = new Membership(n);
+			for (int i = 0; i < n; i++) {
+				membership.ids[i] = in.readInt();
+				byte[] raw = new byte[in.readUnsignedByte()];
+				in.readFully(raw);
+				membership.addresses.add(new InetSocketAddress(InetAddress.getByAddress(raw), in.readUnsignedShort()));
+			}
+
+			int lines = in.readInt();
+			for (int i = 0; i < lines; i++) {
+				int[] affected = new int[in.readInt()];
+				for (int j = 0; j < affected.length; j++)
+					affected[j] = in.readInt();
+				membership.affected.add(affected);
+			}
+			return membership;
+		}
+	}
+
+	private void writeCache(File cache, int length, long crc) throws IOException {
+		File temp = File.createTempFile(cache.getName(), ".tmp", cache.getAbsoluteFile().getParentFile());
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+				out.writeInt(CACHE_MAGIC);
+				out.writeInt(CACHE_VERSION);
+				out.writeInt(length);
+				out.writeLong(crc);
+
+				out.writeInt(ids.length);
+				for (int i = 0; i < ids.length; i++) {
+					out.writeInt(ids[i]);
+					byte[] raw = addresses.get(i).getAddress().getAddress();
+					out.writeByte(raw.length);
+					out.write(raw);
+					out.writeShort(addresses.get(i).getPort());
+				}
+
+				out.writeInt(affected.size());
+				for (int[] line : affected) {
+					out.writeInt(line.length);
+					for (int id : line)
+						out.writeInt(id);
+				}
+			}
+			Files.move(temp.toPath(), cache.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			temp.delete();
+		}
+	}
+}
@@ -4,8 +4,10 @@ import java.util.ArrayList;
 import java.util.Objects;
 
 public class Message implements Serializable {
-	// To serialize for sending
-	private static final long serialVersionUID = 1423627893178345L;
+	// To serialize for sending. Changed when the vector clock became a
+	// VectorClock, so that a message of an older build is rejected as a whole
+	// instead of failing on its clock
+	private static final long serialVersionUID = 5726493018376521L;
 
 	// Thread ID that started sending this message
 	private Long threadId;
@@ -20,9 +22,30 @@ public class Message implements Serializable {
 	private boolean broadcast;
 	private Integer sender;
 	private Integer ackSender;
-	private ArrayList<Integer> vectorClock;
+	private VectorClock vectorClock;
 	private boolean sent;
 
+	// Number of consecutive message IDs carried by this message, starting at id
+	private Integer count;
+	// Vector clocks of every message of a batch, null for a single message
+	private ArrayList<VectorClock> batchClocks;
+
+	// Ranges received above id (start, end, start, end, ...) if this is a
+	// cumulative acknowledgment of all IDs up to id
+	private ArrayList<Integer> sackRanges;
+
+	// IDs that the process sender has of every original sender, if this is a
+	// gossip digest (see GossipDisseminator)
+	private ArrayList<Integer> digest;
+
+	// Received datagram whose body can be sent again by the relays of this
+	// message, null if it was not received or must be encoded (see Frame)
+	private transient Frame frame;
+
+	// Local times, for the metrics: first reception and URB delivery
+	private transient long receivedAt = -1;
+	private transient long urbAt = -1;
+
 	/**
 	 * 
 	 * @param m                   - Message string
@@ -40,7 +63,7 @@ public class Message implements Serializable {
 	 */
 	public Message(String m, Integer destinationPort, InetAddress destinationInetAddr, Integer sourcePort,
 			InetAddress sourceInetAddr, Integer id, boolean isAck, boolean broadcast, Integer sender, Integer ackSender,
-			ArrayList<Integer> vectorClock) {
+			VectorClock vectorClock) {
 		this.m = m;
 		this.destinationPort = destinationPort;
 		this.destinationInetAddr = destinationInetAddr;
@@ -53,9 +76,133 @@ public class Message implements Serializable {
 		this.ackSender = ackSender;
 		this.vectorClock = vectorClock;
 		this.sent = false;
+		this.count = 1;
+	}
+
+	/**
+	 * Copy of message m for another destination.
+	 *
+	 * @param m                   - Message to be copied
+	 * @param destinationInetAddr - Destination address of the copy
+	 * @param destinationPort     - Destination port of the copy
+	 */
+	public Message(Message m, InetAddress destinationInetAddr, Integer destinationPort) {
+		this(m.m, destinationPort, destinationInetAddr, m.sourcePort, m.sourceInetAddr, m.id, m.isAck, m.broadcast,
+				m.sender, m.ackSender, m.vectorClock);
+		this.threadId = m.threadId;
+		this.count = m.count;
+		this.batchClocks = m.batchClocks;
+		this.sackRanges = m.sackRanges;
+		this.digest = m.digest;
+		this.frame = m.frame;
+	}
+
+	/**
+	 * Turn this message into a batch of consecutive messages id, id + 1, ... from
+	 * the same sender.
+	 *
+	 * @param batchClocks - Vector clock of each message of the batch, in order
+	 */
+	public void setBatch(ArrayList<VectorClock> batchClocks) {
+		if (batchClocks.size() == 1) {
+			this.count = 1;
+			this.batchClocks = null;
+		} else {
+			this.count = batchClocks.size();
+			this.batchClocks = batchClocks;
+		}
+		this.vectorClock = batchClocks.get(0);
+	}
+
+	/**
+	 * Copy the batch of message m to this message.
+	 *
+	 * @param m - Message whose IDs and vector clocks are carried
+	 */
+	public void copyBatch(Message m) {
+		this.count = m.getCount();
+		this.batchClocks = m.getBatchClocks();
+	}
+
+	/**
+	 * @return The single messages carried by this message, itself if it is not a
+	 *         batch.
+	 */
+	public ArrayList<Message> unbatch() {
+		ArrayList<Message> messages = new ArrayList<Message>();
+		if (!isBatch()) {
+			messages.add(this);
+			return messages;
+		}
+
+		for (int i = 0; i < count; i++) {
+			Integer msgId = id + i;
+			Message single = new Message(msgId.toString(), destinationPort, destinationInetAddr, sourcePort,
+					sourceInetAddr, msgId, isAck, broadcast, sender, ackSender, batchClocks.get(i));
+			single.setThreadId(threadId);
+			messages.add(single);
+		}
+		return messages;
+	}
+
+	public boolean isBatch() {
+		return getCount() > 1;
+	}
+
+	public int getCount() {
+		// Only batches set the count
+		return count == null ? 1 : count;
+	}
+
+	public ArrayList<VectorClock> getBatchClocks() {
+		return batchClocks;
+	}
+
+	public ArrayList<Integer> getSackRanges() {
+		return sackRanges;
+	}
+
+	public void setSackRanges(ArrayList<Integer> sackRanges) {
+		this.sackRanges = sackRanges;
+	}
+
+	public boolean isDigest() {
+		return digest != null;
+	}
+
+	public ArrayList<Integer> getDigest() {
+		return digest;
+	}
+
+	public void setDigest(ArrayList<Integer> digest) {
+		this.digest = digest;
+	}
+
+	public Frame getFrame() {
+		return frame;
+	}
+
+	public void setFrame(Frame frame) {
+		this.frame = frame;
+	}
+
+	public long getReceivedAt() {
+		return receivedAt;
+	}
+
+	public void setReceivedAt(long receivedAt) {
+		this.receivedAt = receivedAt;
+	}
+
+	public long getUrbAt() {
+		return urbAt;
+	}
+
+	public void setUrbAt(long urbAt) {
+		this.urbAt = urbAt;
 	}
 
-	public ArrayList<Integer> getVectorClock() {
+	public VectorClock getVectorClock() {
 		return vectorClock;
 	}
 
@@ -0,0 +1,26 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns a Message into the payload of a datagram and back.
+ */
+public interface MessageCodec {
+
+	/**
+	 * Write message m into the buffer, starting at its current position.
+	 *
+	 * @param m   - Message to be encoded
+	 * @param out - Buffer that receives the encoded bytes
+	 * @throws IOException - If the message cannot be encoded
+	 */
+	void encode(Message m, ByteBuffer out) throws IOException;
+
+	/**
+	 * Read one message from the remaining bytes of the buffer.
+	 *
+	 * @param in - Buffer that holds the received datagram
+	 * @return Decoded message.
+	 * @throws IOException - If the bytes are not a valid message
+	 */
+	Message decode(ByteBuffer in) throws IOException;
+}
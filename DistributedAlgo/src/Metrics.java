@@ -0,0 +1,302 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters, gauges and latency histograms of one process.
+ *
+ * Counters are LongAdders bumped on the hot paths. Gauges are read from the
+ * process when the metrics are collected. The three histograms split the life
+ * of each delivered message at this process:
+ *
+ * broadcast to URB - from its broadcast (own messages) or its first reception
+ *                    until a majority acknowledged it
+ * URB to FIFO      - until the previous message of its sender was delivered
+ * FIFO to LCB      - until the messages it causally depends on were delivered
+ *
+ * The metrics are exposed through JMX and in the Prometheus text format of
+ * toPrometheus(), which MetricsServer serves and the USR1 handler of Process
+ * dumps to da_proc_<id>.metrics.
+ */
+public class Metrics implements MetricsMXBean {
+	private Process p;
+
+	private LongAdder broadcasts = new LongAdder();
+	private LongAdder datagramsSent = new LongAdder();
+	private LongAdder retransmissions = new LongAdder();
+	private LongAdder acksSent = new LongAdder();
+	private LongAdder acksReceived = new LongAdder();
+	private LongAdder idsAcknowledged = new LongAdder();
+	private LongAdder urbDelivered = new LongAdder();
+	private LongAdder relays = new LongAdder();
+	private LongAdder relaysSkipped = new LongAdder();
+	private LongAdder delivered = new LongAdder();
+
+	private LatencyHistogram broadcastToUrb = new LatencyHistogram();
+	private LatencyHistogram urbToFifo = new LatencyHistogram();
+	private LatencyHistogram fifoToLcb = new LatencyHistogram();
+
+	public Metrics(Process p) {
+		this.p = p;
+	}
+
+	/**
+	 * Register the metrics as da:type=Process,id=<process ID> on the platform
+	 * MBean server, in place of an earlier process with the same ID in this JVM.
+	 * Starting the MBean server takes a while, so this is not done before the
+	 * signal handlers are installed.
+	 */
+	public void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("da:type=Process,id=" + p.getProcessId());
+			if (server.isRegistered(name))
+				server.unregisterMBean(name);
+			server.registerMBean(this, name);
+		} catch (JMException e) {
+			System.out.println("Failed to register the metrics.");
+		}
+	}
+
+	public void countBroadcasts(int count) {
+		broadcasts.add(count);
+	}
+
+	public void countSent(Message m) {
+		datagramsSent.increment();
+		if (m.isAck())
+			acksSent.increment();
+	}
+
+	public void countRetransmissions(int count) {
+		datagramsSent.add(count);
+		retransmissions.add(count);
+	}
+
+	/**
+	 * @param ids - Number of IDs the ack acknowledged for the first time
+	 */
+	public void countAckReceived(int ids) {
+		acksReceived.increment();
+		idsAcknowledged.add(ids);
+	}
+
+	/**
+	 * @param sent    - Copies of a message relayed
+	 * @param skipped - Copies not relayed because the process had the message
+	 */
+	public void countRelay(int sent, int skipped) {
+		relays.add(sent);
+		relaysSkipped.add(skipped);
+	}
+
+	public void countUrbDelivered() {
+		urbDelivered.increment();
+	}
+
+	/**
+	 * Count a delivered message and record its latencies.
+	 *
+	 * @param m         - Delivered message
+	 * @param fifoReady - Time at which its FIFO predecessor was delivered, or it
+	 *                  was URB delivered if later
+	 * @param now       - Time of the delivery
+	 */
+	public void countDelivered(Message m, long fifoReady, long now) {
+		delivered.increment();
+		if (m.getReceivedAt() >= 0 && m.getUrbAt() >= 0) {
+			broadcastToUrb.record(m.getUrbAt() - m.getReceivedAt());
+			urbToFifo.record(fifoReady - m.getUrbAt());
+			fifoToLcb.record(now - fifoReady);
+		}
+	}
+
+	/**
+	 * @return Every metric in the Prometheus text exposition format.
+	 */
+	public String toPrometheus() {
+		String label = "{process=\"" + p.getProcessId() + "\"}";
+		StringBuilder out = new StringBuilder();
+
+		counter(out, "da_broadcasts_total", "Messages broadcast by this process", label, getBroadcasts());
+		counter(out, "da_datagrams_sent_total", "Datagrams handed to the transport", label, getDatagramsSent());
+		counter(out, "da_packets_sent_total", "Datagrams sent on the network, several may share one", label,
+				getPacketsSent());
+		counter(out, "da_retransmissions_total", "Datagrams sent again after a timeout", label,
+				getRetransmissions());
+		counter(out, "da_acks_sent_total", "Acknowledgments sent", label, getAcksSent());
+		counter(out, "da_acks_received_total", "Acknowledgments received", label, getAcksReceived());
+		counter(out, "da_ids_acknowledged_total", "Message IDs acknowledged for the first time", label,
+				getIdsAcknowledged());
+		counter(out, "da_relays_total", "Copies of messages of other processes relayed", label, getRelays());
+		counter(out, "da_relays_skipped_total", "Relay copies not sent to a process that had the message", label,
+				getRelaysSkipped());
+		counter(out, "da_urb_delivered_total", "Messages acknowledged by a majority", label, getUrbDelivered());
+		counter(out, "da_delivered_total", "Messages delivered", label, getDelivered());
+
+		gauge(out, "da_send_queue", "Messages waiting to be sent", label, getSendQueueSize());
+		gauge(out, "da_outstanding", "Datagrams waiting for an acknowledgment", label, getOutstanding());
+		gauge(out, "da_window", "Smallest congestion window of the destinations, in messages", label,
+				getWindow());
+		gauge(out, "da_inflight", "Most broadcasts a destination has not acknowledged yet", label, getInflight());
+		gauge(out, "da_suspected_peers", "Peers suspected to have crashed", label, getSuspectedPeers());
+		gauge(out, "da_lcb_pending", "Received messages waiting for causal delivery", label, getLcbPending());
+		gauge(out, "da_fifo_gaps", "URB delivered messages waiting for an earlier one of their sender", label,
+				getFifoGaps());
+
+		summary(out, "da_broadcast_to_urb_seconds", "Broadcast or first reception until URB delivery",
+				p.getProcessId(), broadcastToUrb);
+		summary(out, "da_urb_to_fifo_seconds", "URB delivery until FIFO order allows delivery", p.getProcessId(),
+				urbToFifo);
+		summary(out, "da_fifo_to_lcb_seconds", "FIFO order until causal delivery", p.getProcessId(), fifoToLcb);
+		return out.toString();
+	}
+
+	private static void counter(StringBuilder out, String name, String help, String label, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" counter\n");
+		out.append(name).append(label).append(' ').append(value).append('\n');
+	}
+
+	private static void gauge(StringBuilder out, String name, String help, String label, long value) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" gauge\n");
+		out.append(name).append(label).append(' ').append(value).append('\n');
+	}
+
+	private static void summary(StringBuilder out, String name, String help, int process,
+			LatencyHistogram histogram) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" summary\n");
+		for (String q : new String[] { "0.5", "0.9", "0.99", "0.999" }) {
+			out.append(name).append("{process=\"").append(process).append("\",quantile=\"").append(q)
+					.append("\"} ").append(histogram.getQuantile(Double.parseDouble(q)) / 1e9).append('\n');
+		}
+		out.append(name).append("_sum{process=\"").append(process).append("\"} ")
+				.append(histogram.getSum() / 1e9).append('\n');
+		out.append(name).append("_count{process=\"").append(process).append("\"} ")
+				.append(histogram.getCount()).append('\n');
+	}
+
+	@Override
+	public long getBroadcasts() {
+		return broadcasts.sum();
+	}
+
+	@Override
+	public long getDatagramsSent() {
+		return datagramsSent.sum();
+	}
+
+	@Override
+	public long getPacketsSent() {
+		return p.getTransport().getPacketsSent();
+	}
+
+	@Override
+	public long getRetransmissions() {
+		return retransmissions.sum();
+	}
+
+	@Override
+	public long getAcksSent() {
+		return acksSent.sum();
+	}
+
+	@Override
+	public long getAcksReceived() {
+		return acksReceived.sum();
+	}
+
+	@Override
+	public long getIdsAcknowledged() {
+		return idsAcknowledged.sum();
+	}
+
+	@Override
+	public long getRelays() {
+		return relays.sum();
+	}
+
+	@Override
+	public long getRelaysSkipped() {
+		return relaysSkipped.sum();
+	}
+
+	@Override
+	public long getUrbDelivered() {
+		return urbDelivered.sum();
+	}
+
+	@Override
+	public long getDelivered() {
+		return delivered.sum();
+	}
+
+	@Override
+	public int getSendQueueSize() {
+		return p.getTransport().getQueueSize();
+	}
+
+	@Override
+	public int getOutstanding() {
+		return p.getRetransmissions().getOutstandingCount();
+	}
+
+	@Override
+	public int getWindow() {
+		return p.getFlowControl().getWindow();
+	}
+
+	@Override
+	public int getInflight() {
+		return p.getFlowControl().getInflight();
+	}
+
+	@Override
+	public int getSuspectedPeers() {
+		return p.getRetransmissions().getSuspectedCount();
+	}
+
+	@Override
+	public int getLcbPending() {
+		return p.getLCB().getPendingCount();
+	}
+
+	@Override
+	public int getFifoGaps() {
+		return p.getLCB().getFifoGapCount();
+	}
+
+	@Override
+	public long getBroadcastToUrbP50() {
+		return broadcastToUrb.getQuantile(0.5);
+	}
+
+	@Override
+	public long getBroadcastToUrbP99() {
+		return broadcastToUrb.getQuantile(0.99);
+	}
+
+	@Override
+	public long getUrbToFifoP50() {
+		return urbToFifo.getQuantile(0.5);
+	}
+
+	@Override
+	public long getUrbToFifoP99() {
+		return urbToFifo.getQuantile(0.99);
+	}
+
+	@Override
+	public long getFifoToLcbP50() {
+		return fifoToLcb.getQuantile(0.5);
+	}
+
+	@Override
+	public long getFifoToLcbP99() {
+		return fifoToLcb.getQuantile(0.99);
+	}
+}
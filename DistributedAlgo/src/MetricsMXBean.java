@@ -0,0 +1,53 @@
+/**
+ * Metrics of a process as seen through JMX, registered as
+ * da:type=Process,id=<process ID>. Latencies are in nanoseconds.
+ */
+public interface MetricsMXBean {
+	long getBroadcasts();
+
+	long getDatagramsSent();
+
+	long getPacketsSent();
+
+	long getRetransmissions();
+
+	long getAcksSent();
+
+	long getAcksReceived();
+
+	long getIdsAcknowledged();
+
+	long getRelays();
+
+	long getRelaysSkipped();
+
+	long getUrbDelivered();
+
+	long getDelivered();
+
+	int getSendQueueSize();
+
+	int getOutstanding();
+
+	int getWindow();
+
+	int getInflight();
+
+	int getSuspectedPeers();
+
+	int getLcbPending();
+
+	int getFifoGaps();
+
+	long getBroadcastToUrbP50();
+
+	long getBroadcastToUrbP99();
+
+	long getUrbToFifoP50();
+
+	long getUrbToFifoP99();
+
+	long getFifoToLcbP50();
+
+	long getFifoToLcbP99();
+}
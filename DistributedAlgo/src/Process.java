@@ -1,57 +1,61 @@
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.locks.ReentrantLock;
 import sun.misc.Signal;
 import sun.misc.SignalHandler;
 
 public class Process extends Thread {
-	private DatagramSocket socket; // Socket used to send and receive messages
+	private Transport transport; // Sends and receives the messages of the process
 	private InetAddress ip; // Socket IP address of the process
 	private Integer port; // Socket port number of the process
 
 	private Integer processId; // Process ID that is given in membership file
 	private ArrayList<InetSocketAddress> processes; // List of all process IP/port numbers from the membership file
+	private volatile HashMap<InetSocketAddress, Integer> processIds; // Process ID of each address of the membership
 	private Integer broadcastCount; // The broadcast count m given in the membership file
 	private Integer processCount;
 
-	private FileOutputStream fos; // File output stream for da_proc_n.out
-	private ConcurrentLinkedQueue<String> logMsg = new ConcurrentLinkedQueue<String>(); // Log message that is written
-																						// to the file in the end
+	private LogWriter logWriter; // Writes the log to da_proc_n.out while the process runs
+	private WriteAheadLog wal; // Records the broadcasts and deliveries if enabled
+	private WriteAheadLog.Recovery recovery; // State recovered from the log, if any
 
-	private ArrayList<Boolean> isAffected;
-	private ArrayList<Integer> vectorClock;
+	private Metrics metrics; // Counters and latency histograms of the process
+	private MetricsServer metricsServer; // Serves the metrics over HTTP if enabled
 
-	// A list of messages to sending
-	private CopyOnWriteArrayList<Message> sendMessages;
+	private boolean[] isAffected;
+	private VectorClock vectorClock;
 
-	// A list of acknowledgment messages
-	private volatile CopyOnWriteArrayList<Message> ackMsgs = new CopyOnWriteArrayList<Message>();
+	// Timers of the sent messages that have not been acknowledged yet
+	private RetransmissionWheel retransmissions;
 
-	// Hash map for each sender thread ID to see if the thread message has been
-	// acknowledged by other process
-	private volatile ConcurrentHashMap<Long, Boolean> threadIds = new ConcurrentHashMap<Long, Boolean>();
+	// Number of suspicions of the wheel when the ack table was last collected
+	private int suspicions = 0;
+
+	// Acknowledgments received for each (sender, id)
+	private AckTable ackTable = new AckTable(this);
+
+	// IDs of each sender that have been relayed, each one only once
+	private ConcurrentHashMap<Integer, RangeSet> relayed = new ConcurrentHashMap<Integer, RangeSet>();
+
+	// Window of the broadcasts of this process
+	private FlowControl flowControl;
+
+	// Spreads the broadcasts and relays to the other processes
+	private Disseminator disseminator;
+
+	// Cumulative and selective acknowledgments of the links
+	private AckTracker ackTracker = new AckTracker(this);
 
 	private LocalizedCausalBroadcast LCB;
 	// private FIFOBroadcast fifoBC;
-	private SenderListener sListener;
-	private Listener pListener;
 
-	static Integer msgID = 0;
+	// ID of the last message broadcast by this process
+	private Integer msgID = 0;
 
 
 	ReentrantLock VClock = new ReentrantLock();     // Lock for vector clock
@@ -59,7 +63,8 @@ public class Process extends Thread {
 
 
 	/**
-	 * Process constructor
+	 * Process constructor, for a process that sends its messages on a UDP socket
+	 * bound to ip and port.
 	 *
 	 * @param ip             - Socket IP address of the process
 	 * @param port           - Socket port number of the process
@@ -68,63 +73,166 @@ public class Process extends Thread {
 	 */
 
 	public Process(InetAddress ip, Integer port, Integer processId, Integer broadcastCount, Integer n) {
+		this(ip, port, processId, broadcastCount, n, new UdpTransport(new InetSocketAddress(ip, port), n));
+	}
+
+	/**
+	 * Process constructor
+	 *
+	 * @param ip             - IP address of the process in the membership
+	 * @param port           - Port number of the process in the membership
+	 * @param processId      - Process ID that is given in membership file
+	 * @param broadcastCount - The broadcast count m given in the membership file
+	 * @param transport      - Transport of the messages, started here
+	 */
+	public Process(InetAddress ip, Integer port, Integer processId, Integer broadcastCount, Integer n,
+			Transport transport) {
 
 		// Initialize the variables
+		this.transport = transport;
 		this.ip = ip;
 		this.port = port;
 		this.processId = processId;
 		this.broadcastCount = broadcastCount;
-		this.vectorClock = new ArrayList<Integer>();
-		this.sendMessages = new CopyOnWriteArrayList<Message>();
-		this.isAffected = new ArrayList<Boolean>();
+		this.vectorClock = new VectorClock(n);
+		this.isAffected = new boolean[n];
 		this.processCount = n;
 
-		for (int i = 0; i < n; i++) {
-			vectorClock.add(0);
+		// Recover the state of the previous run from the write-ahead log, or start
+		// a new log
+		ArrayList<String> replayed = new ArrayList<String>();
+		if (Config.WAL) {
+			this.wal = new WriteAheadLog(processId, n);
+			try {
+				if (Config.RECOVER)
+					this.recovery = this.wal.recover(replayed);
+				else
+					this.wal.reset();
+			} catch (IOException e) {
+				System.out.println("Failed to open the write-ahead log.");
+				this.wal = null;
+			}
+		}
+
+		// Start the log writer with the given output file name before anything
+		// can be logged. A recovered output is cut where the checkpoint was taken
+		// and the lines logged after it are written again.
+		String fileName = "da_proc_" + this.processId.toString() + ".out";
+		try {
+			this.logWriter = new LogWriter(fileName, this.recovery == null ? 0 : this.recovery.getOutputBytes());
+			this.logWriter.start();
+			for (String l : replayed)
+				this.logWriter.log(l);
+		} catch (IOException e) {
+			System.out.println("File not found!");
 		}
+		if (this.wal != null)
+			this.wal.start(this.logWriter);
+
+		// Metrics are available over HTTP if a port is given, and through JMX once
+		// registered
+		this.metrics = new Metrics(this);
+		if (Config.METRICS_PORT > 0) {
+			try {
+				this.metricsServer = new MetricsServer(this.metrics, Config.METRICS_PORT + processId - 1);
+				this.metricsServer.start();
+			} catch (IOException e) {
+				System.out.println("Failed to start the metrics endpoint.");
+			}
+		}
+
 		// LocalizedCausalBroadcast is to used broadcast and deliver messages
 		this.LCB = new LocalizedCausalBroadcast(this);
 
 		// FIFOBroadcast is to used broadcast and deliver messages
 		// this.fifoBC = new FIFOBroadcast(this);
 
-		// Open socket and start process listener for messages
-		try {
-			this.socket = new DatagramSocket(this.port, this.ip);
-		} catch (SocketException e) {
-			System.out.println("Failed to create a socket!");
-		}
-		pListener = new Listener();
-		pListener.start();
+		// Start receiving messages and ticking the retransmission timer
+		retransmissions = new RetransmissionWheel(transport);
+		flowControl = new FlowControl(this, retransmissions);
+		if (Config.DISSEMINATION.equals("gossip"))
+			disseminator = new GossipDisseminator(this);
+		else
+			disseminator = new BestEffortBroadcast(this);
 
-		sListener = new SenderListener();
-		sListener.start();
+		// Nothing may be received before the recovered state is in place
+		if (recovery != null)
+			restore(recovery);
+		transport.start(this::received, this::tick);
+	}
 
-		// Initialize the FileOutputStream with the given output file name
-		String fileName = "da_proc_" + this.processId.toString() + ".out";
-		try {
-			this.fos = new FileOutputStream(fileName);
-		} catch (FileNotFoundException e) {
-			System.out.println("File not found!");
+	/**
+	 * Continue from the recovered state: the delivered messages are not
+	 * delivered again and the IDs of the broadcasts go on from the last one.
+	 *
+	 * @param recovery - State rebuilt from the write-ahead log
+	 */
+	private void restore(WriteAheadLog.Recovery recovery) {
+		int[] delivered = recovery.getDelivered();
+		for (int i = 0; i < delivered.length; i++)
+			this.vectorClock.set(i, delivered[i]);
+		this.LCB.restore(delivered);
+		this.msgID = recovery.getLastBroadcast();
+		this.flowControl.restore(this.msgID);
+	}
+
+	/**
+	 * Send again the recovered messages that this process had not delivered
+	 * before it stopped. Nobody may have received its own broadcasts, and the
+	 * messages of other processes had been acknowledged, so they are relayed
+	 * again to collect a majority of acknowledgments. Does nothing for a process
+	 * that did not recover. Call once the processes are set.
+	 */
+	public void resendRecovered() {
+		if (recovery == null)
+			return;
+		for (WriteAheadLog.Record r : recovery.getUndelivered()) {
+			if (r.getSender() == getProcessId()) {
+				try {
+					this.LCB.resend(r.getFirstId(), r.getCount(), r.getClock());
+				} catch (IOException e) {
+					System.out.println("Failed to send messages.");
+				}
+				continue;
+			}
+
+			Message m = new Message(Integer.toString(r.getFirstId()), port, ip, port, ip, r.getFirstId(), false, false,
+					r.getSender(), null, r.getClock());
+			recordAck(r.getSender(), r.getFirstId(), getProcessId());
+			if (isFirstCopy(m))
+				relay(m);
+			m.setReceivedAt(transport.nanoTime());
+			disseminator.received(m);
+			LCB.deliver(m);
 		}
+		LCB.deliverMarked();
+	}
 
+	/**
+	 * Install the handlers of TERM, INT (stop the process), USR2 (start
+	 * broadcasting) and USR1 (dump the metrics).
+	 */
+	public void handleSignals() {
 		// Signal handlers for TERM, INT, USR2
 		SigHandlerTerm sigHandlerTerm = new SigHandlerTerm(this);
 		SigHandlerInt sigHandlerInt = new SigHandlerInt(this);
 		SigHandlerUsr2 sigHandlerUsr2 = new SigHandlerUsr2(this);
+		SigHandlerUsr1 sigHandlerUsr1 = new SigHandlerUsr1(this);
 
 		Signal signalTerm = new Signal("TERM");
 		Signal signalInt = new Signal("INT");
 		Signal signalUsr2 = new Signal("USR2");
+		Signal signalUsr1 = new Signal("USR1");
 
 		Signal.handle(signalInt, sigHandlerInt);
 		Signal.handle(signalTerm, sigHandlerTerm);
 		Signal.handle(signalUsr2, sigHandlerUsr2);
+		Signal.handle(signalUsr1, sigHandlerUsr1);
 
 	}
 
 	/**
-	 * Signal handler for TERM. Write to output file and close process.
+	 * Signal handler for TERM. Finish the output file and close process.
 	 */
 	public static class SigHandlerTerm implements SignalHandler {
 		Process p;
@@ -136,29 +244,13 @@ public class Process extends Thread {
 
 		@Override
 		public void handle(Signal signal) {
-			try {
-				for (String m : p.getLogMsg())
-					p.getFos().write(m.getBytes());
-			} catch (IOException e1) {
-				System.out.println("Failed to file to FileOutputStream.");
-			}
-
-			try {
-				p.getFos().flush();
-				p.getFos().close();
-			} catch (IOException e) {
-				System.out.println("Failed to flush FileOutputStream.");
-			}
-
-			p.getpListener().interrupt();
-			p.getsListener().interrupt();
-			p.interrupt();
+			p.shutdown();
 			System.exit(0);
 		}
 	}
 
 	/**
-	 * Signal handler for INT. Write to output file and close process.
+	 * Signal handler for INT. Finish the output file and close process.
 	 */
 	public static class SigHandlerInt implements SignalHandler {
 		Process p;
@@ -170,29 +262,14 @@ public class Process extends Thread {
 
 		@Override
 		public void handle(Signal signal) {
-			try {
-				for (String m : p.getLogMsg())
-					p.getFos().write(m.getBytes());
-			} catch (IOException e1) {
-				System.out.println("Failed to file to FileOutputStream.");
-			}
-
-			try {
-				p.getFos().flush();
-				p.getFos().close();
-			} catch (IOException e) {
-				System.out.println("Failed to flush FileOutputStream.");
-			}
-
-			p.getpListener().interrupt();
-			p.getsListener().interrupt();
-			p.interrupt();
+			p.shutdown();
 			System.exit(0);
 		}
 	}
 
 	/**
-	 * Signal handler for USR2. After receiving signal, start broadcasting.
+	 * Signal handler for USR2. After receiving signal, start broadcasting as fast
+	 * as the flow control allows.
 	 */
 	public static class SigHandlerUsr2 implements SignalHandler {
 		Process p;
@@ -204,22 +281,23 @@ public class Process extends Thread {
 
 		@Override
 		public void handle(Signal signal) {
-			for (Integer i = 1; i <= this.p.getBroadcastCount(); i++) {
-
-				// Broadcast messages 1->m
-				Process.msgID += 1;
+			Integer batchSize = this.p.getLCB().getBatchSize();
+			Integer sent = this.p.getMsgID();
 
+			// Broadcast messages 1->m, up to batchSize messages at a time, after
+			// the ones broadcast before a restart
+			while (sent < this.p.getBroadcastCount()) {
 				try {
-					this.p.getLCB().sendMessage(Process.msgID);
+					// Wait until every destination has room for a message
+					Integer count = this.p.getFlowControl()
+							.acquire(Math.min(batchSize, this.p.getBroadcastCount() - sent));
+					this.p.broadcast(count);
+					sent += count;
 				} catch (IOException e) {
 					System.out.println("Failed to send messages.");
-				}
-
-				// Wait some milliseconds between broadcasts
-				try {
-					Thread.sleep(10);
 				} catch (InterruptedException e) {
-					System.out.println("Timeout interrupted.");
+					System.out.println("Broadcast interrupted.");
+					return;
 				}
 			}
 
@@ -229,15 +307,113 @@ public class Process extends Thread {
 	}
 
 	/**
-	 * This method creates a new instance of the Sender class, and it makes this
-	 * thread start sending message m.
+	 * Signal handler for USR1. Write the current metrics to da_proc_n.metrics,
+	 * for when neither JMX nor the HTTP endpoint can be reached.
+	 */
+	public static class SigHandlerUsr1 implements SignalHandler {
+		Process p;
+
+		private SigHandlerUsr1(Process p) {
+			super();
+			this.p = p;
+		}
+
+		@Override
+		public void handle(Signal signal) {
+			try (FileWriter writer = new FileWriter("da_proc_" + p.getProcessId() + ".metrics")) {
+				writer.write(p.getMetrics().toPrometheus());
+			} catch (IOException e) {
+				System.out.println("Failed to write the metrics.");
+			}
+		}
+	}
+
+	/**
+	 * Broadcast the next count messages of this process, as one batch if there
+	 * is more than one.
+	 *
+	 * @param count - Number of messages to broadcast
+	 */
+	public synchronized void broadcast(Integer count) throws IOException {
+		this.metrics.countBroadcasts(count);
+		if (count == 1) {
+			this.msgID += 1;
+			this.LCB.sendMessage(this.msgID);
+		} else {
+			Integer firstId = this.msgID + 1;
+			this.msgID += count;
+			this.LCB.sendBatch(firstId, count);
+		}
+	}
+
+	/**
+	 * Write what is left of the log, force it to disk and stop the threads of
+	 * the process.
+	 */
+	public void shutdown() {
+		this.logWriter.close();
+		if (this.wal != null)
+			this.wal.close();
+
+		this.transport.close();
+		this.LCB.close();
+		if (this.metricsServer != null)
+			this.metricsServer.stop();
+		this.interrupt();
+	}
+
+	/**
+	 * This method hands message m to the transport. Messages that are not
+	 * acknowledgments are retransmitted until they are acknowledged.
 	 *
 	 * @param m - Message to be sent
 	 */
 	public void sendMessage(Message m) {
-		if (!m.isAck())
-			this.sendMessages.add(m);
-		new Sender(m).start();
+		track(m);
+		metrics.countSent(m);
+		transport.send(m);
+	}
+
+	/**
+	 * Hand the copies of a message, one per destination, to the transport. With
+	 * a multicast transport they leave as one datagram to the group; each copy
+	 * is still retransmitted by unicast until its destination acknowledges it.
+	 *
+	 * @param copies - Copies of the same message for different destinations
+	 */
+	public void sendMessages(ArrayList<Message> copies) {
+		if (!transport.isMulticast() || copies.size() < 2) {
+			for (Message m : copies)
+				sendMessage(m);
+			return;
+		}
+
+		for (Message m : copies)
+			track(m);
+		metrics.countSent(copies.get(0));
+		transport.sendGroup(copies.get(0));
+	}
+
+	/**
+	 * Account for a message that is about to be sent for the first time.
+	 *
+	 * @param m - Message to be sent
+	 */
+	private void track(Message m) {
+		// Original broadcasts of this process take room in the window of their
+		// destination
+		if (m.isBroadcast() && m.getSender().equals(getProcessId()))
+			flowControl.sent(new InetSocketAddress(m.getDestinationInetAddr(), m.getDestinationPort()), m.getCount());
+
+		// Digests are sent again on every gossip round, not retransmitted
+		if (!m.isAck() && !m.isDigest()) {
+			this.retransmissions.schedule(m);
+
+			// An ack that arrived before would never be reported again, so a message
+			// the peer already has must not wait for one
+			if (ackTracker.isAcknowledged(m))
+				this.retransmissions.cancel(LinkKey.forMessage(m));
+		}
 	}
 
 	/**
@@ -246,183 +422,211 @@ public class Process extends Thread {
 	 * @return Count of acknowledgments for Message m.
 	 */
 	public Integer msgAckCount(Message m) {
-		Integer count = 0;
-		ArrayList<Integer> senderIds = new ArrayList<Integer>();
-		for (Message mAck : ackMsgs) {
-			if (mAck.getId().equals(m.getId()) && mAck.getSender().equals(m.getSender())
-					&& !senderIds.contains(mAck.getAckSender())) {
-				count++;
-				senderIds.add(mAck.getAckSender());
-			}
-		}
-		return count;
+		return ackTable.count(m.getSender(), m.getId());
 	}
 
-	public class SenderListener extends Thread {
-		@Override
-		public void run() {
-
-			// Keep listening for messages for the whole duration of the process
-			while (true) {
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e) {
-					System.out.println("Sleep interrupted.");
-				}
-				
-				// Resend all messages that we haven't received ACK from
-				for (Message m : Process.this.sendMessages) {
-					if (!m.getSent()) {
-						new Sender(m).start();
-						try {
-							Thread.sleep(1);
-						} catch (InterruptedException e) {
-							System.out.println("Sleep interrupted.");
-						}
-					}
-
-				}
-			}
+	/**
+	 * Drives the retransmission wheel: on every tick the links that received
+	 * messages are acknowledged and the messages whose timeout has expired are
+	 * sent again.
+	 */
+	public void tick() {
+		// Acknowledge what was received since the last tick
+		ackTracker.flush();
+
+		// Resend the messages that we haven't received ACK from in time, a lost
+		// broadcast of this process shrinks the window of its destination
+		ArrayList<LinkKey> resent = retransmissions.advance();
+		metrics.countRetransmissions(resent.size());
+		for (LinkKey key : resent) {
+			if (key.getSender() == getProcessId())
+				flowControl.lost(key.getDestination(), key.getId());
+		}
+		flowControl.tick();
+		disseminator.tick();
+
+		// A suspected process is not waited for anymore, which may make the
+		// delivered messages stable
+		if (retransmissions.getSuspicions() != suspicions) {
+			suspicions = retransmissions.getSuspicions();
+			ackTable.collect();
 		}
 	}
 
 	/**
-	 * This is a subclass of the class Process, and it extends Thread. It is
-	 * responsible for listening to the incoming messages.
+	 * Handle a message received by the transport.
+	 *
+	 * @param from - Address the message was received from
+	 * @param msg  - Received message
 	 */
-	public class Listener extends Thread {
+	public void received(InetSocketAddress from, Message msg) {
+		// The transport starts before the membership is read, and a restarted
+		// process is sent messages right away. They are retransmitted.
+		if (processIds == null)
+			return;
 
-		@Override
-		public void run() {
-			DatagramSocket socket = getSocket();
-			byte[] receive = new byte[65535];
-			DatagramPacket dpReceive = null;
+		// Anything received shows that the peer is alive
+		retransmissions.heardFrom(from);
+
+		if (msg.isDigest()) {
+			// What the peer has, the gaps are repaired
+			disseminator.digestReceived(msg);
+		} else if (!msg.isAck()) {
+			// The source of the copy and this process both have the message, which
+			// counts as their acknowledgment
+			recordCopy(msg);
+
+			// Relay the message of another process when its first copy arrives,
+			// which is logged before it is acknowledged
+			if (!msg.getSender().equals(getProcessId()) && isFirstCopy(msg)) {
+				if (wal != null) {
+					for (Message single : msg.unbatch())
+						wal.received(single);
+				}
+				relay(msg);
+			}
 
-			// Keep listening for messages for the whole duration of the process
-			while (true) {
+			// Acknowledge the message, together with the others received from
+			// the same link, on the next tick
+			ackTracker.received(from, msg);
 
-				dpReceive = new DatagramPacket(receive, receive.length);
-				try {
-					// Receive a new message
-					socket.receive(dpReceive);
-					InetAddress senderIp = dpReceive.getAddress();
-					Integer senderPort = dpReceive.getPort();
-					byte[] msgBytes = dpReceive.getData();
-
-					try {
-						// Get the Message object from the data
-						ByteArrayInputStream bis = new ByteArrayInputStream(msgBytes);
-						ObjectInputStream ois = new ObjectInputStream(bis);
-						Message msg = (Message) ois.readObject();
-
-						if (!msg.isAck()) {
-							// Broadcast the message if needed
-							if (msg.isBroadcast() && msg.getSender() != getProcessId()) {
-								ArrayList<Message> messages = Process.this.createMessagesList(msg);
-								BestEffortBroadcast beb = new BestEffortBroadcast(Process.this);
-								beb.sendMessage(messages);
-							}
-
-							// Send acknowledgment for non-acknowledgment message
-							Message ack = new Message(msg.getM(), senderPort, senderIp, msg.getDestinationPort(),
-									msg.getDestinationInetAddr(), msg.getId(), true, msg.isBroadcast(), msg.getSender(),
-									getProcessId(), msg.getVectorClock());
-							ack.setThreadId(msg.getThreadId());
-
-							// Send acknowledgment
-							Process.this.sendMessage(ack);
-						} else {
-							// Receive acknowledgement
-
-							// Set threadID true so that Sender thread stops sending
-							Process.this.removeSendMsg(msg);
-
-							// Add message to acknowledges and broadcast
-							ackMsgs.add(msg);
-							LCB.deliver(msg);
-							// fifoBC.canDeliver(msg);
-						}
-					} catch (ClassNotFoundException e) {
-						System.out.println("Message class not found.");
-					}
-				} catch (SocketTimeoutException e) {
-					System.out.println("Socket timeout reached.");
-				} catch (IOException e) {
-					System.out.println("Unable to read socket data.");
-				}
+			// Every received message is pending until it can be delivered
+			long now = transport.nanoTime();
+			for (Message single : msg.unbatch()) {
+				single.setReceivedAt(now);
+				disseminator.received(single);
+				LCB.deliver(single);
 			}
+		} else {
+			// Receive acknowledgement
+
+			// Stop retransmitting the acknowledged messages and count the acks
+			removeSendMsg(msg);
 		}
+
+		// Without a deliver thread, deliver what this message made deliverable
+		LCB.deliverMarked();
 	}
 
+	/**
+	 * Stop retransmitting the messages acknowledged by msg and record the acks.
+	 * Only the IDs that msg acknowledges for the first time are processed.
+	 *
+	 * @param msg - Received cumulative and selective acknowledgment
+	 */
 	public void removeSendMsg(Message msg) {
-		for (Integer i = 0; i < sendMessages.size(); i++) {
-			Message m = sendMessages.get(i);
-			if (m.getId().equals(msg.getId()) && m.getM().equals(msg.getM())
-					&& m.getDestinationInetAddr().equals(msg.getSourceInetAddr())
-					&& m.getDestinationPort().equals(msg.getSourcePort())
-					&& m.getSourceInetAddr().equals(msg.getDestinationInetAddr())
-					&& m.getSourcePort().equals(msg.getDestinationPort()) && m.getSender().equals(msg.getSender())
-					&& m.isBroadcast() == msg.isBroadcast()) {
-				sendMessages.get(i).setSent(true);
-				break;
+		InetSocketAddress peer = new InetSocketAddress(msg.getSourceInetAddr(), msg.getSourcePort());
+		ArrayList<int[]> ranges = ackTracker.acknowledged(msg);
+		int majority = getProcesses().size() / 2 + 1;
+		int ids = 0;
+
+		for (int[] range : ranges) {
+			for (int id = range[0]; id <= range[1]; id++) {
+				retransmissions.acknowledge(new LinkKey(peer, msg.getSender(), id));
+				recordAck(msg.getSender(), id, msg.getAckSender());
 			}
-
+			ids += range[1] - range[0] + 1;
 		}
+		metrics.countAckReceived(ids);
+
+		// Acknowledged broadcasts of this process free room in the window
+		if (ids > 0 && msg.getSender().equals(getProcessId()))
+			flowControl.acknowledged(peer, ids);
+		if (!ranges.isEmpty())
+			LCB.acknowledged(msg.getSender());
 	}
 
 	/**
-	 * Sender class sends a single message.
+	 * Record that process acker has message id of sender.
+	 *
+	 * @param sender - Process ID that broadcast the message originally
+	 * @param id     - ID of the message
+	 * @param acker  - Process ID that has the message
 	 */
-	public class Sender extends Thread {
-
-		private Message msg;
-
-		public Sender(Message m) {
-			this.msg = m;
+	public void recordAck(int sender, int id, int acker) {
+		if (ackTable.record(sender, id, acker) == getProcesses().size() / 2 + 1) {
+			ackTable.reachedMajority(sender, id, transport.nanoTime());
+			metrics.countUrbDelivered();
 		}
+	}
 
-		@Override
-		public void run() {
-
-			// Get socket, destination IP and port
-			DatagramSocket piSocket = getSocket();
-			Integer port = msg.getDestinationPort();
-			InetAddress ip = msg.getDestinationInetAddr();
+	/**
+	 * Count a received copy of a message as the acknowledgment of the process
+	 * that sent it and of this process.
+	 *
+	 * @param msg - Received message, possibly a batch
+	 */
+	private void recordCopy(Message msg) {
+		Integer source = processIds.get(new InetSocketAddress(msg.getSourceInetAddr(), msg.getSourcePort()));
+		for (int id = msg.getId(); id < msg.getId() + msg.getCount(); id++) {
+			recordAck(msg.getSender(), id, getProcessId());
+			if (source != null)
+				recordAck(msg.getSender(), id, source);
+		}
+	}
 
-			// Mark the message with thread ID, which is used to stop Thread
-			Long threadID = this.getId();
-			if (!msg.isAck())
-				msg.setThreadId(threadID);
+	/**
+	 * @param msg - Received message, possibly a batch
+	 * @return True if some of its IDs have not been relayed yet. They are
+	 *         marked as relayed.
+	 */
+	private boolean isFirstCopy(Message msg) {
+		RangeSet ids = relayed.computeIfAbsent(msg.getSender(), s -> new RangeSet());
+		return !ids.add(msg.getId(), msg.getId() + msg.getCount() - 1).isEmpty();
+	}
 
-			// Create Message packet that is sent
-			ByteArrayOutputStream objectOut = new ByteArrayOutputStream();
-			ObjectOutputStream dataOut;
-			try {
-				dataOut = new ObjectOutputStream(objectOut);
-				dataOut.writeObject(msg);
-				dataOut.close();
-			} catch (IOException e) {
-				System.out.println("Unable to create output stream.");
-			}
-			byte[] data = objectOut.toByteArray();
-			DatagramPacket piPacket = new DatagramPacket(data, data.length, ip, port);
+	/**
+	 * Relay a message to every process, except the ones that are known to have
+	 * it if Config.RELAY_SKIP_KNOWN is set. Relays are retransmitted until they
+	 * are acknowledged, so one relay per message is enough.
+	 *
+	 * @param msg - Message of another process
+	 */
+	private void relay(Message msg) {
+		ArrayList<Message> messages = new ArrayList<Message>();
+		int skipped = 0;
+		for (Message m : createMessagesList(msg)) {
+			if (Config.RELAY_SKIP_KNOWN && hasMessage(m))
+				skipped++;
+			else
+				messages.add(m);
+		}
+		metrics.countRelay(messages.size(), skipped);
 
-			// Send packet
-			try {
-				piSocket.send(piPacket);
-			} catch (IOException e) {
-				System.out.println("Unable to send message.");
-			}
+		try {
+			disseminator.sendMessage(messages);
+		} catch (IOException e) {
+			System.out.println("Unable to relay message.");
 		}
 	}
 
-	public ArrayList<Integer> mask(ArrayList<Integer> maskedVC) {
-		for (Integer i = 0; i < maskedVC.size(); i++) {
-			if (!isAffected.get(i))
-				maskedVC.set(i, 0);
+	/**
+	 * @param m - Relay of a message, possibly a batch
+	 * @return True if its destination is known to have every ID of it: it is
+	 *         the original sender or it acknowledged them.
+	 */
+	private boolean hasMessage(Message m) {
+		Integer destination = processIds.get(new InetSocketAddress(m.getDestinationInetAddr(), m.getDestinationPort()));
+		if (destination == null)
+			return false;
+		if (destination.equals(m.getSender()))
+			return true;
+
+		for (int id = m.getId(); id < m.getId() + m.getCount(); id++) {
+			if (!ackTable.hasAcked(m.getSender(), id, destination))
+				return false;
 		}
+		return true;
+	}
 
-		return maskedVC;
+	/**
+	 * Keep only the entries of the processes that affect this process.
+	 *
+	 * @param maskedVC - Vector clock that is masked in place
+	 * @return The masked vector clock.
+	 */
+	public VectorClock mask(VectorClock maskedVC) {
+		return maskedVC.mask(isAffected);
 	}
 
 	/**
@@ -433,14 +637,35 @@ public class Process extends Thread {
 	 * @return Initial broadcast messages.
 	 */
 	public ArrayList<Message> createMessagesList(boolean broadcast, Integer sender,
-			ArrayList<Integer> maskedVectorClock) {
+			VectorClock maskedVectorClock) {
 		ArrayList<Message> messages = new ArrayList<Message>();
 
 		for (InetSocketAddress sa : this.getProcesses()) {
 			InetAddress destAddr = sa.getAddress();
 			Integer destPort = sa.getPort();
-			Message m = new Message(Process.msgID.toString(), destPort, destAddr, this.getPort(), this.getIp(),
-					Process.msgID, false, broadcast, sender, null, maskedVectorClock);
+			Message m = new Message(this.msgID.toString(), destPort, destAddr, this.getPort(), this.getIp(),
+					this.msgID, false, broadcast, sender, null, maskedVectorClock);
+			messages.add(m);
+		}
+		return messages;
+	}
+
+	/**
+	 * Create a batch of consecutive messages to be broadcast by sender.
+	 *
+	 * @param sender  - Sender ID that broadcasts the messages.
+	 * @param firstId - ID of the first message of the batch.
+	 * @param clocks  - Masked vector clock of each message of the batch.
+	 * @return Initial broadcast messages, one per process.
+	 */
+	public ArrayList<Message> createBatchList(Integer sender, Integer firstId,
+			ArrayList<VectorClock> clocks) {
+		ArrayList<Message> messages = new ArrayList<Message>();
+
+		for (InetSocketAddress sa : this.getProcesses()) {
+			Message m = new Message(firstId.toString(), sa.getPort(), sa.getAddress(), this.getPort(), this.getIp(),
+					firstId, false, true, sender, null, clocks.get(0));
+			m.setBatch(clocks);
 			messages.add(m);
 		}
 		return messages;
@@ -455,16 +680,44 @@ public class Process extends Thread {
 	public ArrayList<Message> createMessagesList(Message m) {
 		ArrayList<Message> messages = new ArrayList<Message>();
 
-		for (InetSocketAddress sa : getProcesses()) {
-			InetAddress addr = sa.getAddress();
-			Integer port = sa.getPort();
-			Message mRelay = new Message(m.getM(), port, addr, this.getPort(), this.getIp(), m.getId(), false, false,
-					m.getSender(), null, m.getVectorClock());
-			messages.add(mRelay);
-		}
+		for (InetSocketAddress sa : getProcesses())
+			messages.add(createRelay(m, sa));
 		return messages;
 	}
 
+	/**
+	 * Relay message to be sent to one process
+	 *
+	 * @param m           - Message that should be relayed.
+	 * @param destination - Process the relay is sent to.
+	 * @return Relay message.
+	 */
+	public Message createRelay(Message m, InetSocketAddress destination) {
+		Message mRelay = new Message(m.getM(), destination.getPort(), destination.getAddress(), this.getPort(),
+				this.getIp(), m.getId(), false, false, m.getSender(), null, m.getVectorClock());
+		mRelay.copyBatch(m);
+		mRelay.setFrame(m.getFrame());
+		return mRelay;
+	}
+
+	/**
+	 * @param destination - Process the message was sent to
+	 * @param sender      - Process ID that broadcast the message originally
+	 * @param id          - ID of the message
+	 * @return True if the message waits for an acknowledgment of destination.
+	 */
+	public boolean isOutstanding(InetSocketAddress destination, int sender, int id) {
+		return retransmissions.isOutstanding(new LinkKey(destination, sender, id));
+	}
+
+	/**
+	 * @param processId - Process ID of another process
+	 * @return True if the process is suspected to have crashed.
+	 */
+	public boolean isSuspected(int processId) {
+		return retransmissions.isSuspected(getProcesses().get(processId - 1));
+	}
+
 	/**
 	 * Increase the vector clock of index by one. The function is used in FIFO
 	 * broadcast.
@@ -472,8 +725,18 @@ public class Process extends Thread {
 	 * @param index - The index of vector clock that we want to increase.
 	 */
 	public void increaseVectorClock(Integer index) {
-		Integer increasedValue = this.vectorClock.get(index) + 1;
-		this.vectorClock.set(index, increasedValue);
+		this.vectorClock.increase(index, 1);
+	}
+
+	/**
+	 * Increase the vector clock of index by count, for a run of messages
+	 * delivered at once.
+	 *
+	 * @param index - The index of vector clock that we want to increase.
+	 * @param count - Number of delivered messages.
+	 */
+	public void increaseVectorClock(Integer index, int count) {
+		this.vectorClock.increase(index, count);
 	}
 
 	public ArrayList<InetSocketAddress> getProcesses() {
@@ -482,22 +745,68 @@ public class Process extends Thread {
 
 	public void setProcesses(ArrayList<InetSocketAddress> processes) {
 		this.processes = processes;
+		this.processIds = new HashMap<InetSocketAddress, Integer>();
+		for (int i = 0; i < processes.size(); i++)
+			this.processIds.put(processes.get(i), i + 1);
 	}
 
 	public void log(String l) {
-		this.logMsg.add(l);
+		this.logWriter.log(l);
 	}
 
-	public ConcurrentLinkedQueue<String> getLogMsg() {
-		return logMsg;
+	/**
+	 * Record the broadcast of count messages of this process in the write-ahead
+	 * log, if there is one. Called with VClock held, right after their lines
+	 * are logged.
+	 *
+	 * @param firstId - ID of the first message
+	 * @param count   - Number of messages
+	 * @param clock   - Vector clock they were broadcast with, before masking
+	 */
+	public void recordBroadcast(int firstId, int count, VectorClock clock) {
+		if (this.wal != null)
+			this.wal.broadcast(firstId, count, clock);
 	}
 
-	public CopyOnWriteArrayList<Message> getAckMsgs() {
-		return ackMsgs;
+	/**
+	 * Record the delivery of count messages of sender in the write-ahead log,
+	 * if there is one. Called with VClock held, right after their lines are
+	 * logged.
+	 *
+	 * @param sender  - Process ID of the sender
+	 * @param firstId - ID of the first message
+	 * @param count   - Number of messages
+	 */
+	public void recordDelivery(int sender, int firstId, int count) {
+		if (this.wal != null)
+			this.wal.delivered(sender, firstId, count);
 	}
 
-	public void setAckMsgs(CopyOnWriteArrayList<Message> ackMsgs) {
-		this.ackMsgs = ackMsgs;
+	/**
+	 * @return ID of the last message broadcast by this process.
+	 */
+	public synchronized Integer getMsgID() {
+		return msgID;
+	}
+
+	public LogWriter getLogWriter() {
+		return logWriter;
+	}
+
+	public Disseminator getDisseminator() {
+		return disseminator;
+	}
+
+	public FlowControl getFlowControl() {
+		return flowControl;
+	}
+
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	public AckTable getAckTable() {
+		return ackTable;
 	}
 
 	public InetAddress getIp() {
@@ -508,8 +817,8 @@ public class Process extends Thread {
 		this.ip = ip;
 	}
 
-	public DatagramSocket getSocket() {
-		return socket;
+	public Transport getTransport() {
+		return transport;
 	}
 
 	public Integer getPort() {
@@ -536,21 +845,6 @@ public class Process extends Thread {
 		this.broadcastCount = broadcastCount;
 	}
 
-	public FileOutputStream getFos() {
-		return fos;
-	}
-
-	public void setFos(FileOutputStream fos) {
-		this.fos = fos;
-	}
-
-	public ConcurrentHashMap<Long, Boolean> getThreadIds() {
-		return threadIds;
-	}
-
-	public void setThreadIds(ConcurrentHashMap<Long, Boolean> threadIds) {
-		this.threadIds = threadIds;
-	}
 	/*
 	 * public FIFOBroadcast getFifoBC() { return fifoBC; }
 	 * 
@@ -565,35 +859,15 @@ public class Process extends Thread {
 		LCB = lCB;
 	}
 
-	public Listener getpListener() {
-		return pListener;
-	}
-
-	public void setpListener(Listener pListener) {
-		this.pListener = pListener;
-	}
-
-	public SenderListener getsListener() {
-		return sListener;
-	}
-
-	public void setsListener(SenderListener sListener) {
-		this.sListener = sListener;
-	}
-
-	public ArrayList<Boolean> getIsAffected() {
+	public boolean[] getIsAffected() {
 		return isAffected;
 	}
 
-	public void addToIsAffected(boolean value) {
-		isAffected.add(value);
-	}
-
 	public void setIsAffected(int index, boolean value) {
-		isAffected.set(index, value);
+		isAffected[index] = value;
 	}
 
-	public ArrayList<Integer> getVectorClock() {
+	public VectorClock getVectorClock() {
 		return vectorClock;
 	}
 
@@ -605,8 +879,8 @@ public class Process extends Thread {
 		this.processCount = processCount;
 	}
 
-	public CopyOnWriteArrayList<Message> getSendMessages() {
-		return sendMessages;
+	public RetransmissionWheel getRetransmissions() {
+		return retransmissions;
 	}
 
 }
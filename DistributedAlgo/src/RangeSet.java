@@ -0,0 +1,114 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Set of message IDs stored as disjoint ranges. IDs start at 1 and mostly
+ * arrive in order, so the set is usually one range [1, k]: the cumulative part.
+ * The ranges above it are the gaps that are still open.
+ */
+public class RangeSet {
+	// Disjoint, non-adjacent ranges: start -> end (both inclusive)
+	private TreeMap<Integer, Integer> ranges = new TreeMap<Integer, Integer>();
+
+	/**
+	 * Add the IDs from .. to.
+	 *
+	 * @param from - First ID
+	 * @param to   - Last ID, included
+	 * @return The ranges {start, end} that were not in the set before.
+	 */
+	public synchronized ArrayList<int[]> add(int from, int to) {
+		ArrayList<int[]> added = new ArrayList<int[]>();
+		int newStart = from;
+		int newEnd = to;
+
+		// Merge with the range that starts before from and touches it
+		Map.Entry<Integer, Integer> lower = ranges.floorEntry(from);
+		if (lower != null && lower.getValue() >= from - 1)
+			newStart = lower.getKey();
+
+		int cursor = from;
+		Iterator<Map.Entry<Integer, Integer>> it = ranges.subMap(newStart, true, to + 1, true).entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Integer, Integer> e = it.next();
+			if (e.getKey() > cursor)
+				added.add(new int[] { cursor, Math.min(e.getKey() - 1, to) });
+			cursor = Math.max(cursor, e.getValue() + 1);
+			newEnd = Math.max(newEnd, e.getValue());
+			it.remove();
+		}
+		if (cursor <= to)
+			added.add(new int[] { cursor, to });
+
+		ranges.put(newStart, newEnd);
+		return added;
+	}
+
+	public synchronized boolean contains(int id) {
+		Map.Entry<Integer, Integer> e = ranges.floorEntry(id);
+		return e != null && e.getValue() >= id;
+	}
+
+	/**
+	 * @return True if every ID from .. to is in the set.
+	 */
+	public synchronized boolean containsAll(int from, int to) {
+		Map.Entry<Integer, Integer> e = ranges.floorEntry(from);
+		return e != null && e.getValue() >= to;
+	}
+
+	/**
+	 * @return Largest k such that every ID from 1 to k is in the set, 0 if none.
+	 */
+	public synchronized int getCumulative() {
+		if (ranges.isEmpty() || ranges.firstKey() != 1)
+			return 0;
+		return ranges.firstEntry().getValue();
+	}
+
+	/**
+	 * Remove the lowest ranges above from the set.
+	 *
+	 * @param from  - Lowest ID returned, lower IDs are dropped
+	 * @param limit - Largest number of ranges returned
+	 * @return The removed ranges at or above from, flattened as start, end,
+	 *         start, end, ...
+	 */
+	public synchronized ArrayList<Integer> poll(int from, int limit) {
+		ArrayList<Integer> polled = new ArrayList<Integer>();
+		Iterator<Map.Entry<Integer, Integer>> it = ranges.entrySet().iterator();
+		while (it.hasNext() && polled.size() / 2 < limit) {
+			Map.Entry<Integer, Integer> e = it.next();
+			it.remove();
+			if (e.getValue() < from)
+				continue;
+			polled.add(Math.max(e.getKey(), from));
+			polled.add(e.getValue());
+		}
+		return polled;
+	}
+
+	public synchronized boolean isEmpty() {
+		return ranges.isEmpty();
+	}
+
+	/**
+	 * @param limit - Largest number of ranges returned
+	 * @return The ranges above the cumulative part, flattened as start, end,
+	 *         start, end, ...
+	 */
+	public synchronized ArrayList<Integer> getSelectiveRanges(int limit) {
+		ArrayList<Integer> selective = new ArrayList<Integer>();
+		for (Map.Entry<Integer, Integer> e : ranges.entrySet()) {
+			if (e.getKey() == 1)
+				continue;
+			if (selective.size() / 2 >= limit)
+				break;
+			selective.add(e.getKey());
+			selective.add(e.getValue());
+		}
+		return selective;
+	}
+}
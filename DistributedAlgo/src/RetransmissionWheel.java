@@ -0,0 +1,321 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timer wheel that retransmits the messages that have not been
+ * acknowledged yet. Every outstanding message has one entry, found by its
+ * LinkKey and removed as soon as the acknowledgment arrives, so the work done
+ * on each tick only depends on the messages that are still outstanding.
+ *
+ * A peer is suspected to have crashed when a message has been sent to it
+ * Config.SUSPECT_RETRIES times and nothing at all has been received from it
+ * since the first of them. Its outstanding messages are then kept without
+ * being retransmitted, and later messages are sent only once and kept the
+ * same way, so a crashed peer costs no retransmissions. Receiving anything
+ * from the peer clears the suspicion and sends the kept messages again: a
+ * correct process that was only paused, or a process restarted from its log
+ * with Config.WAL, still gets every message.
+ */
+public class RetransmissionWheel {
+	private Transport transport;
+	private long tickNanos;
+	private ArrayList<ArrayList<Entry>> slots;
+	private int mask;
+
+	// Number of ticks that have been processed so far
+	private long currentTick = 0;
+	private long startNanos;
+
+	private ConcurrentHashMap<LinkKey, Entry> outstanding = new ConcurrentHashMap<LinkKey, Entry>();
+	private ConcurrentHashMap<InetSocketAddress, Peer> peers = new ConcurrentHashMap<InetSocketAddress, Peer>();
+
+	// Number of times a peer became suspected so far
+	private AtomicInteger suspicions = new AtomicInteger(0);
+
+	/**
+	 * @param transport - Transport used to send the retransmissions, and whose
+	 *                  clock drives the wheel
+	 */
+	public RetransmissionWheel(Transport transport) {
+		this.transport = transport;
+		this.startNanos = transport.nanoTime();
+		this.tickNanos = Config.WHEEL_TICK * 1000000L;
+
+		// Round the wheel size up to a power of two so that the slot is a mask
+		int size = Integer.highestOneBit(Math.max(2, Config.WHEEL_SLOTS - 1)) << 1;
+		this.slots = new ArrayList<ArrayList<Entry>>(size);
+		for (int i = 0; i < size; i++)
+			this.slots.add(new ArrayList<Entry>());
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Start tracking message m until it is acknowledged. A message that is
+	 * already outstanding keeps its current timer.
+	 *
+	 * @param m - Message that has just been sent
+	 */
+	public void schedule(Message m) {
+		LinkKey key = LinkKey.forMessage(m);
+		Peer peer = peerFor(key.getDestination());
+		if (peer.suspected) {
+			park(peer, m);
+			return;
+		}
+
+		Entry e = new Entry(key, m, peer.rtt.getRto(), transport.nanoTime());
+		if (outstanding.putIfAbsent(key, e) == null)
+			insert(e);
+	}
+
+	/**
+	 * @param key - Key of a sent message
+	 * @return True if the message waits for an acknowledgment.
+	 */
+	public boolean isOutstanding(LinkKey key) {
+		return outstanding.containsKey(key);
+	}
+
+	/**
+	 * @param address - Address of a peer
+	 * @return True if the peer is suspected to have crashed.
+	 */
+	public boolean isSuspected(InetSocketAddress address) {
+		Peer peer = peers.get(address);
+		return peer != null && peer.suspected;
+	}
+
+	/**
+	 * Note that a datagram arrived from the given peer, which clears its
+	 * suspicion.
+	 *
+	 * @param address - Address of the peer
+	 */
+	public void heardFrom(InetSocketAddress address) {
+		Peer peer = peerFor(address);
+		peer.lastHeard = transport.nanoTime();
+		if (!peer.suspected)
+			return;
+
+		// A paused or restarted peer gets what was kept for it
+		ArrayList<Message> parked;
+		synchronized (peer) {
+			peer.suspected = false;
+			parked = peer.parked;
+			peer.parked = new ArrayList<Message>();
+		}
+		for (Message m : parked) {
+			schedule(m);
+			transport.send(m);
+		}
+	}
+
+	/**
+	 * Stop retransmitting the message acknowledged by the given key. The round
+	 * trip time is sampled if the message was sent only once.
+	 *
+	 * @param key - Key of the acknowledged message
+	 * @return True if the message was still outstanding.
+	 */
+	public boolean acknowledge(LinkKey key) {
+		Entry e = outstanding.remove(key);
+		if (e == null)
+			return false;
+
+		e.cancelled = true;
+		e.msg.setSent(true);
+		if (e.attempts == 1)
+			peerFor(key.getDestination()).rtt.sample((transport.nanoTime() - e.sentAt) / 1e6);
+		return true;
+	}
+
+	/**
+	 * Stop retransmitting a message without sampling the round trip time, e.g.
+	 * because the peer had acknowledged it before it was sent again.
+	 *
+	 * @param key - Key of the message
+	 */
+	public void cancel(LinkKey key) {
+		Entry e = outstanding.remove(key);
+		if (e != null)
+			e.cancelled = true;
+	}
+
+	/**
+	 * Process every tick that has elapsed since the last call and retransmit the
+	 * expired messages. Each retransmission doubles the timeout of its message.
+	 *
+	 * @return Keys of the messages sent again.
+	 */
+	public ArrayList<LinkKey> advance() {
+		ArrayList<Entry> expired = new ArrayList<Entry>();
+		ArrayList<InetSocketAddress> suspects = new ArrayList<InetSocketAddress>();
+		long now = transport.nanoTime();
+		long targetTick = (now - startNanos) / tickNanos;
+
+		synchronized (this) {
+			while (currentTick < targetTick) {
+				currentTick++;
+				ArrayList<Entry> slot = slots.get((int) (currentTick & mask));
+				ArrayList<Entry> rescheduled = new ArrayList<Entry>();
+
+				for (Iterator<Entry> it = slot.iterator(); it.hasNext();) {
+					Entry e = it.next();
+					if (e.cancelled) {
+						it.remove();
+					} else if (e.deadlineTick <= currentTick) {
+						it.remove();
+
+						// Give up if there was no sign of life from the peer since the
+						// first attempt, or if it has been suspected meanwhile
+						Peer peer = peerFor(e.key.getDestination());
+						if (peer.suspected
+								|| (e.attempts >= Config.SUSPECT_RETRIES && peer.lastHeard < e.firstSentAt)) {
+							if (outstanding.remove(e.key, e))
+								park(peer, e.msg);
+							suspects.add(e.key.getDestination());
+							continue;
+						}
+						e.attempts++;
+						e.sentAt = now;
+						e.rto = Math.min(Config.MAX_RTO, e.rto * 2);
+						expired.add(e);
+						rescheduled.add(e);
+					}
+				}
+				for (Entry e : rescheduled)
+					insertLocked(e);
+			}
+		}
+
+		for (InetSocketAddress address : suspects)
+			suspect(address);
+
+		ArrayList<LinkKey> sent = new ArrayList<LinkKey>();
+		for (Entry e : expired) {
+			if (!e.cancelled) {
+				transport.send(e.msg);
+				sent.add(e.key);
+			}
+		}
+		return sent;
+	}
+
+	/**
+	 * Stop retransmitting to a peer that seems to have crashed.
+	 *
+	 * @param address - Address of the peer
+	 */
+	private void suspect(InetSocketAddress address) {
+		Peer peer = peerFor(address);
+		if (peer.suspected)
+			return;
+		peer.suspected = true;
+		suspicions.incrementAndGet();
+
+		for (Iterator<Entry> it = outstanding.values().iterator(); it.hasNext();) {
+			Entry e = it.next();
+			if (e.key.getDestination().equals(address)) {
+				e.cancelled = true;
+				it.remove();
+				park(peer, e.msg);
+			}
+		}
+	}
+
+	/**
+	 * Keep a message of a suspected peer until it is heard from again.
+	 */
+	private void park(Peer peer, Message m) {
+		synchronized (peer) {
+			if (peer.suspected) {
+				peer.parked.add(m);
+				return;
+			}
+		}
+
+		// Heard from meanwhile
+		schedule(m);
+	}
+
+	/**
+	 * @return Number of peers currently suspected to have crashed.
+	 */
+	public int getSuspectedCount() {
+		int count = 0;
+		for (Peer peer : peers.values())
+			if (peer.suspected)
+				count++;
+		return count;
+	}
+
+	/**
+	 * @return Number of times a peer became suspected so far.
+	 */
+	public int getSuspicions() {
+		return suspicions.get();
+	}
+
+	/**
+	 * @return Number of messages waiting for an acknowledgment.
+	 */
+	public int getOutstandingCount() {
+		return outstanding.size();
+	}
+
+	private Peer peerFor(InetSocketAddress address) {
+		Peer peer = peers.get(address);
+		return peer != null ? peer : peers.computeIfAbsent(address, a -> new Peer(transport.nanoTime()));
+	}
+
+	private synchronized void insert(Entry e) {
+		insertLocked(e);
+	}
+
+	private void insertLocked(Entry e) {
+		long ticks = Math.max(1, (e.rto * 1000000L + tickNanos - 1) / tickNanos);
+		e.deadlineTick = currentTick + ticks;
+		slots.get((int) (e.deadlineTick & mask)).add(e);
+	}
+
+	/**
+	 * Round trip time and liveness of one peer.
+	 */
+	private static class Peer {
+		private RttEstimator rtt = new RttEstimator();
+		private volatile long lastHeard;
+		private volatile boolean suspected = false;
+
+		// Messages kept while the peer is suspected
+		private ArrayList<Message> parked = new ArrayList<Message>();
+
+		private Peer(long now) {
+			this.lastHeard = now;
+		}
+	}
+
+	/**
+	 * Timer of one outstanding message.
+	 */
+	private static class Entry {
+		private LinkKey key;
+		private Message msg;
+		private long rto;
+		private long firstSentAt;
+		private long sentAt;
+		private long deadlineTick;
+		private int attempts = 1;
+		private volatile boolean cancelled = false;
+
+		private Entry(LinkKey key, Message msg, long rto, long sentAt) {
+			this.key = key;
+			this.msg = msg;
+			this.rto = rto;
+			this.firstSentAt = sentAt;
+			this.sentAt = sentAt;
+		}
+	}
+}
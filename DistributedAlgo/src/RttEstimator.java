@@ -0,0 +1,33 @@
+/**
+ * Round trip time estimate of one link, used to compute its retransmission
+ * timeout (Jacobson/Karels: RTO = SRTT + 4 * RTTVAR).
+ */
+public class RttEstimator {
+	private double srtt = -1;
+	private double rttvar;
+	private long rto = Config.INITIAL_RTO;
+
+	/**
+	 * Add a round trip time sample. Only messages that were sent once should be
+	 * sampled, otherwise it is unknown which transmission was acknowledged.
+	 *
+	 * @param rttMillis - Time between sending a message and receiving its ack
+	 */
+	public synchronized void sample(double rttMillis) {
+		if (srtt < 0) {
+			srtt = rttMillis;
+			rttvar = rttMillis / 2;
+		} else {
+			rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rttMillis);
+			srtt = 0.875 * srtt + 0.125 * rttMillis;
+		}
+		rto = Math.max(Config.MIN_RTO, Math.min(Config.MAX_RTO, (long) Math.ceil(srtt + 4 * rttvar)));
+	}
+
+	/**
+	 * @return Timeout before the first retransmission of a message.
+	 */
+	public synchronized long getRto() {
+		return rto;
+	}
+}
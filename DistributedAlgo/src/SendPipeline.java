@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outbound path of a process. Any thread can queue messages, a small fixed set
+ * of writer threads encode and send them on the process channel.
+ *
+ * With the binary codec, a relay whose received datagram is still held (see
+ * Frame) keeps the frame while it is queued, and the writer only writes its
+ * header before copying the received body.
+ *
+ * Each writer packs the messages it sends to the same destination in one
+ * datagram, see Coalescer. It waits up to Config.COALESCE_DELAY for more
+ * messages before it sends a packet that is not full.
+ */
+public class SendPipeline {
+	// Largest payload of a UDP datagram
+	public static final int MAX_DATAGRAM = 65507;
+
+	private DatagramChannel channel;
+	private MessageCodec codec;
+	private BinaryMessageCodec relayCodec;
+	private ArrayBlockingQueue<Outgoing> queue;
+	private ArrayList<Writer> writers = new ArrayList<Writer>();
+
+	/**
+	 * @param channel - Channel the datagrams are sent on
+	 * @param codec   - Codec used to encode the messages
+	 */
+	public SendPipeline(DatagramChannel channel, MessageCodec codec) {
+		this.channel = channel;
+		this.codec = codec;
+		if (codec instanceof BinaryMessageCodec)
+			this.relayCodec = (BinaryMessageCodec) codec;
+		this.queue = new ArrayBlockingQueue<Outgoing>(Config.SEND_QUEUE_CAPACITY);
+		for (int i = 0; i < Config.SEND_THREADS; i++)
+			writers.add(new Writer());
+	}
+
+	public void start() {
+		for (Writer w : writers)
+			w.start();
+	}
+
+	public void interrupt() {
+		for (Writer w : writers)
+			w.interrupt();
+	}
+
+	/**
+	 * Queue message m for sending. Blocks while the queue is full, which slows
+	 * down producers instead of dropping messages.
+	 *
+	 * @param m - Message to be sent
+	 */
+	public void send(Message m) {
+		Frame frame = relayCodec == null ? null : m.getFrame();
+		if (frame != null && !frame.retain())
+			frame = null;
+
+		try {
+			queue.put(new Outgoing(m, frame));
+		} catch (InterruptedException e) {
+			if (frame != null)
+				frame.release();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public int getQueueSize() {
+		return queue.size();
+	}
+
+	/**
+	 * @return Number of datagrams sent on the channel, fewer than the messages
+	 *         if some of them shared a datagram.
+	 */
+	public long getPacketsSent() {
+		long sent = 0;
+		for (Writer w : writers)
+			sent += w.coalescer.getSent();
+		return sent;
+	}
+
+	/**
+	 * Writer thread. Takes every message that is queued at the moment, encodes
+	 * them one after another using its own direct buffer and adds them to the
+	 * packets of their destinations.
+	 */
+	public class Writer extends Thread {
+		private ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+		private ArrayList<Outgoing> batch = new ArrayList<Outgoing>(Config.SEND_BATCH);
+		private Coalescer coalescer = new Coalescer(channel);
+
+		@Override
+		public void run() {
+			// Time at which the oldest packet that is not full must be sent
+			long deadline = Long.MAX_VALUE;
+			while (!isInterrupted()) {
+				try {
+					Outgoing o;
+					if (deadline == Long.MAX_VALUE)
+						o = queue.take();
+					else
+						o = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if (o != null)
+						batch.add(o);
+				} catch (InterruptedException e) {
+					return;
+				}
+				queue.drainTo(batch, Config.SEND_BATCH - batch.size());
+
+				long now = System.nanoTime();
+				for (Outgoing o : batch) {
+					Message m = o.m;
+					try {
+						buffer.clear();
+						if (o.frame != null)
+							relayCodec.encodeRelay(m, o.frame, buffer);
+						else
+							codec.encode(m, buffer);
+						buffer.flip();
+						coalescer.add(new InetSocketAddress(m.getDestinationInetAddr(), m.getDestinationPort()), buffer,
+								now);
+					} catch (BufferOverflowException e) {
+						System.out.println("Message too large to send.");
+					} catch (ClosedChannelException e) {
+						return;
+					} catch (IOException e) {
+						System.out.println("Unable to send message.");
+					} finally {
+						if (o.frame != null)
+							o.frame.release();
+					}
+				}
+				batch.clear();
+
+				try {
+					deadline = coalescer.flush(System.nanoTime());
+				} catch (ClosedChannelException e) {
+					return;
+				} catch (IOException e) {
+					System.out.println("Unable to send message.");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Queued message, with the frame it holds if it is sent as a relay of a
+	 * received datagram.
+	 */
+	private static class Outgoing {
+		private Message m;
+		private Frame frame;
+
+		private Outgoing(Message m, Frame frame) {
+			this.m = m;
+			this.frame = frame;
+		}
+	}
+}
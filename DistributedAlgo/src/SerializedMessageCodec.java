@@ -0,0 +1,60 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The original wire format: the whole Message object written with Java
+ * serialization, used with -Dda.codec=serialized. Only processes of this
+ * build understand each other: Message has changed since the first builds and
+ * their messages are rejected.
+ */
+public class SerializedMessageCodec implements MessageCodec {
+
+	// First two bytes of every Java serialization stream
+	public static final short STREAM_MAGIC = (short) 0xACED;
+
+	@Override
+	public void encode(Message m, ByteBuffer out) throws IOException {
+		ByteArrayOutputStream objectOut = new ByteArrayOutputStream();
+		ObjectOutputStream dataOut = new ObjectOutputStream(objectOut);
+		dataOut.writeObject(m);
+		dataOut.close();
+		out.put(objectOut.toByteArray());
+	}
+
+	@Override
+	public Message decode(ByteBuffer in) throws IOException {
+		byte[] data;
+		int offset;
+		if (in.hasArray()) {
+			data = in.array();
+			offset = in.arrayOffset() + in.position();
+		} else {
+			data = new byte[in.remaining()];
+			in.duplicate().get(data);
+			offset = 0;
+		}
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data, offset, in.remaining()));
+		try {
+			return (Message) ois.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Message class not found.", e);
+		} catch (InvalidClassException e) {
+			throw new IOException("Message of another build.", e);
+		} catch (ClassCastException e) {
+			throw new IOException("Not a message.", e);
+		}
+	}
+
+	/**
+	 * @param in - Received datagram
+	 * @return True if the datagram starts like a Java serialization stream.
+	 */
+	public static boolean matches(ByteBuffer in) {
+		return in.remaining() >= 2 && in.getShort(in.position()) == STREAM_MAGIC;
+	}
+}
@@ -0,0 +1,288 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Network of processes that run in one JVM, on a virtual clock.
+ *
+ * Sending a message encodes it and schedules its arrival at the destination.
+ * Events run one at a time on the thread that calls run(), in the order of
+ * their virtual time, and the clock jumps from one event to the next. Nothing
+ * waits for real time, and a run only depends on its seed.
+ *
+ * The links lose each datagram with probability Config.SIM_LOSS and delay it
+ * by Config.SIM_DELAY plus up to Config.SIM_JITTER microseconds, which
+ * reorders datagrams when the jitter is larger than the time between them.
+ * Datagrams leave each process one after another at Config.SIM_BANDWIDTH
+ * bytes per second.
+ *
+ * If Config.MULTICAST_GROUP is set, a group datagram leaves its process once
+ * and is lost and delayed independently on the way to each process.
+ */
+public class SimulatedNetwork {
+	private long now = 0;
+	private long sequence = 0;
+	private boolean stopped = false;
+	private PriorityQueue<Event> events = new PriorityQueue<Event>();
+	private Random random;
+
+	private HashMap<InetSocketAddress, Endpoint> endpoints = new HashMap<InetSocketAddress, Endpoint>();
+	private MessageCodec codec = Config.createCodec();
+	private ByteBuffer buffer = ByteBuffer.allocate(SendPipeline.MAX_DATAGRAM);
+
+	private long sent = 0;
+	private long lost = 0;
+	private long bytes = 0;
+
+	/**
+	 * @param seed - Seed of the random losses and delays
+	 */
+	public SimulatedNetwork(long seed) {
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * @param address - Address of the process in the membership
+	 * @return Transport of the process with the given address.
+	 */
+	public Transport attach(InetSocketAddress address) {
+		Endpoint endpoint = new Endpoint(address);
+		endpoints.put(address, endpoint);
+		return endpoint;
+	}
+
+	/**
+	 * Run action after the given delay of virtual time.
+	 *
+	 * @param delayNanos - Delay in nanoseconds
+	 * @param action     - Action to run
+	 */
+	public void schedule(long delayNanos, Runnable action) {
+		events.add(new Event(now + delayNanos, sequence++, action));
+	}
+
+	/**
+	 * Run the events in order until stop() is called, no event is left or the
+	 * virtual clock reaches the limit.
+	 *
+	 * @param limitNanos - Virtual time at which the run ends
+	 */
+	public void run(long limitNanos) {
+		stopped = false;
+		while (!stopped && !events.isEmpty() && events.peek().time <= limitNanos) {
+			Event e = events.poll();
+			now = e.time;
+			e.action.run();
+		}
+	}
+
+	/**
+	 * End run() after the current event.
+	 */
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * @return Current virtual time in nanoseconds.
+	 */
+	public long now() {
+		return now;
+	}
+
+	public long getSent() {
+		return sent;
+	}
+
+	public long getLost() {
+		return lost;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	private void send(Endpoint from, Message m) {
+		byte[] datagram = encode(m);
+		if (datagram == null)
+			return;
+
+		long departure = depart(from, datagram);
+		transmit(from, new InetSocketAddress(m.getDestinationInetAddr(), m.getDestinationPort()), datagram,
+				departure);
+	}
+
+	private void sendGroup(Endpoint from, Message m) {
+		byte[] datagram = encode(m);
+		if (datagram == null)
+			return;
+
+		long departure = depart(from, datagram);
+		for (InetSocketAddress destination : endpoints.keySet())
+			transmit(from, destination, datagram, departure);
+	}
+
+	private byte[] encode(Message m) {
+		buffer.clear();
+		try {
+			codec.encode(m, buffer);
+		} catch (BufferOverflowException e) {
+			System.out.println("Message too large to send.");
+			return null;
+		} catch (IOException e) {
+			System.out.println("Unable to send message.");
+			return null;
+		}
+		buffer.flip();
+		byte[] datagram = new byte[buffer.remaining()];
+		buffer.get(datagram);
+
+		sent++;
+		bytes += datagram.length;
+		return datagram;
+	}
+
+	/**
+	 * @return Virtual time at which the datagram leaves, once the previous ones
+	 *         of the process are out.
+	 */
+	private long depart(Endpoint from, byte[] datagram) {
+		long departure = now;
+		if (Config.SIM_BANDWIDTH > 0) {
+			departure = Math.max(now, from.busyUntil) + datagram.length * 1000000000L / Config.SIM_BANDWIDTH;
+			from.busyUntil = departure;
+		}
+		return departure;
+	}
+
+	private void transmit(Endpoint from, InetSocketAddress destination, byte[] datagram, long departure) {
+		if (Config.SIM_LOSS > 0 && random.nextDouble() < Config.SIM_LOSS) {
+			lost++;
+			return;
+		}
+
+		long delay = Config.SIM_DELAY * 1000L;
+		if (Config.SIM_JITTER > 0)
+			delay += (long) (random.nextDouble() * Config.SIM_JITTER * 1000L);
+		schedule(departure - now + delay, () -> arrive(from.address, destination, datagram));
+	}
+
+	private void arrive(InetSocketAddress from, InetSocketAddress destination, byte[] datagram) {
+		Endpoint endpoint = endpoints.get(destination);
+		if (endpoint == null || endpoint.receiver == null || endpoint.closed)
+			return;
+
+		try {
+			endpoint.receiver.received(from, codec.decode(ByteBuffer.wrap(datagram)));
+		} catch (IOException e) {
+			System.out.println("Unable to decode message.");
+		}
+	}
+
+	/**
+	 * Transport of one process on the simulated network.
+	 */
+	private class Endpoint implements Transport {
+		private InetSocketAddress address;
+		private Receiver receiver;
+		private boolean closed = false;
+
+		// Virtual time at which the uplink of the process is free again
+		private long busyUntil = 0;
+
+		// Every message is a datagram of its own
+		private long packets = 0;
+
+		private Endpoint(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		@Override
+		public void start(Receiver receiver, Runnable tick) {
+			this.receiver = receiver;
+			schedule(Config.WHEEL_TICK * 1000000L, new Runnable() {
+				@Override
+				public void run() {
+					if (closed)
+						return;
+					tick.run();
+					schedule(Config.WHEEL_TICK * 1000000L, this);
+				}
+			});
+		}
+
+		@Override
+		public void send(Message m) {
+			if (!closed) {
+				packets++;
+				SimulatedNetwork.this.send(this, m);
+			}
+		}
+
+		@Override
+		public boolean isMulticast() {
+			return !Config.MULTICAST_GROUP.isEmpty();
+		}
+
+		@Override
+		public void sendGroup(Message m) {
+			if (!closed) {
+				packets++;
+				SimulatedNetwork.this.sendGroup(this, m);
+			}
+		}
+
+		@Override
+		public int getQueueSize() {
+			// Datagrams are scheduled as soon as they are sent
+			return 0;
+		}
+
+		@Override
+		public long getPacketsSent() {
+			return packets;
+		}
+
+		@Override
+		public long nanoTime() {
+			return now;
+		}
+
+		@Override
+		public boolean isThreaded() {
+			return false;
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+
+	/**
+	 * Action that runs at a given virtual time. Events of the same time run in
+	 * the order they were scheduled.
+	 */
+	private static class Event implements Comparable<Event> {
+		private long time;
+		private long sequence;
+		private Runnable action;
+
+		private Event(long time, long sequence, Runnable action) {
+			this.time = time;
+			this.sequence = sequence;
+			this.action = action;
+		}
+
+		@Override
+		public int compareTo(Event e) {
+			if (time != e.time)
+				return Long.compare(time, e.time);
+			return Long.compare(sequence, e.sequence);
+		}
+	}
+}
@@ -0,0 +1,184 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+
+/**
+ * Runs every process of a membership in this JVM on a SimulatedNetwork and
+ * reports how long the broadcasts took, in virtual and in real time.
+ *
+ * java Simulation membership m
+ * java Simulation n m
+ *
+ * With a membership file, the addresses only name the processes and the
+ * dependencies are read as in Da_proc. With a number n, there are n processes
+ * without dependencies. Each process broadcasts m messages as fast as its flow
+ * control allows, and writes da_proc_i.out as usual. The
+ * network is configured with the -Dda.sim.* properties of Config.
+ */
+public class Simulation {
+	private SimulatedNetwork network;
+	private ArrayList<Process> processes = new ArrayList<Process>();
+	private Integer broadcastCount;
+
+	/**
+	 * @param network        - Network the processes are attached to
+	 * @param addresses      - Address of each process, in process ID order
+	 * @param affected       - Processes that affect each process
+	 * @param broadcastCount - Number of messages broadcast by each process
+	 */
+	public Simulation(SimulatedNetwork network, ArrayList<InetSocketAddress> addresses, boolean[][] affected,
+			Integer broadcastCount) {
+		this.network = network;
+		this.broadcastCount = broadcastCount;
+
+		Integer n = addresses.size();
+		for (Integer i = 0; i < n; i++) {
+			InetSocketAddress address = addresses.get(i);
+			Process p = new Process(address.getAddress(), address.getPort(), i + 1, broadcastCount, n,
+					network.attach(address));
+			for (int j = 0; j < n; j++) {
+				if (affected[i][j])
+					p.setIsAffected(j, true);
+			}
+			p.setProcesses(addresses);
+			p.getMetrics().register();
+			processes.add(p);
+		}
+	}
+
+	/**
+	 * Start the broadcasts and run the network until every process delivered
+	 * every message or Config.SIM_TIME_LIMIT seconds of virtual time elapsed.
+	 *
+	 * @return True if every message was delivered everywhere.
+	 */
+	public boolean run() {
+		for (Process p : processes) {
+			Broadcaster broadcaster = new Broadcaster(p);
+			p.getFlowControl().setListener(broadcaster::creditAvailable);
+			network.schedule(0, broadcaster);
+		}
+		network.schedule(Config.WHEEL_TICK * 1000000L, new Runnable() {
+			@Override
+			public void run() {
+				if (isComplete())
+					network.stop();
+				else
+					network.schedule(Config.WHEEL_TICK * 1000000L, this);
+			}
+		});
+
+		network.run(Config.SIM_TIME_LIMIT * 1000000000L);
+		return isComplete();
+	}
+
+	/**
+	 * @return Number of messages delivered, summed over every process.
+	 */
+	public long getDelivered() {
+		long delivered = 0;
+		for (Process p : processes) {
+			for (int i = 0; i < processes.size(); i++)
+				delivered += p.getVectorClock().get(i);
+		}
+		return delivered;
+	}
+
+	public boolean isComplete() {
+		return getDelivered() == (long) broadcastCount * processes.size() * processes.size();
+	}
+
+	/**
+	 * Write the logs and stop the processes.
+	 */
+	public void shutdown() {
+		for (Process p : processes)
+			p.shutdown();
+	}
+
+	/**
+	 * Broadcasts the messages of one process, a batch at a time, as the USR2
+	 * handler of Process does. When the window is full it waits for the flow
+	 * control to report credit instead of blocking.
+	 */
+	private class Broadcaster implements Runnable {
+		private Process p;
+		private Integer sent = 0;
+		private boolean waiting = false;
+
+		private Broadcaster(Process p) {
+			this.p = p;
+		}
+
+		@Override
+		public void run() {
+			waiting = false;
+			while (sent < broadcastCount) {
+				int count = p.getFlowControl().tryAcquire(Math.min(p.getLCB().getBatchSize(), broadcastCount - sent));
+				if (count == 0) {
+					waiting = true;
+					return;
+				}
+
+				try {
+					p.broadcast(count);
+				} catch (IOException e) {
+					System.out.println("Failed to send messages.");
+				}
+				sent += count;
+			}
+		}
+
+		/**
+		 * Run again as a separate event, never from inside the flow control.
+		 */
+		private void creditAvailable() {
+			if (waiting) {
+				waiting = false;
+				network.schedule(0, this);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: java Simulation <membership file | number of processes> <m>");
+			return;
+		}
+		Integer broadcastCount = Integer.parseInt(args[1]);
+
+		ArrayList<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		boolean[][] affected;
+		if (args[0].matches("\\d+")) {
+			Integer n = Integer.parseInt(args[0]);
+			for (Integer i = 1; i <= n; i++)
+				addresses.add(new InetSocketAddress(InetAddress.getLoopbackAddress(), 11000 + i));
+			affected = new boolean[n][n];
+		} else {
+			// Same format as the membership file of Da_proc
+			Membership membership = Membership.load(args[0]);
+			Integer n = membership.size();
+			addresses.addAll(membership.getAddresses());
+			affected = new boolean[n][n];
+			for (Integer i = 0; i < n; i++) {
+				for (int id : membership.getAffected(i + 1))
+					affected[i][id - 1] = true;
+			}
+		}
+
+		SimulatedNetwork network = new SimulatedNetwork(Config.SIM_SEED);
+		Simulation simulation = new Simulation(network, addresses, affected, broadcastCount);
+
+		long start = System.nanoTime();
+		boolean complete = simulation.run();
+		long wall = System.nanoTime() - start;
+		simulation.shutdown();
+
+		System.out.println((complete ? "Complete" : "Incomplete") + ": " + simulation.getDelivered()
+				+ " deliveries in " + network.now() / 1000000 + " ms of virtual time, " + wall / 1000000
+				+ " ms of real time");
+		System.out.println(network.getSent() + " datagrams (" + network.getBytes() + " bytes), "
+				+ network.getLost() + " lost");
+	}
+}
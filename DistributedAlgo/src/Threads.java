@@ -0,0 +1,60 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Threads of the receive workers of UdpTransport, which decode and handle the
+ * received messages (and deliver them, with virtual threads). Config.THREADS
+ * (the da.threads system property) chooses between platform threads
+ * ("platform") and virtual threads ("virtual"). The listener, the send
+ * pipeline, the timer and the log writer always run on platform threads.
+ *
+ * Virtual threads need Java 21. They are created through reflection so that
+ * the sources still build with older JDKs, and platform threads are used when
+ * the running JVM has none.
+ */
+public class Threads {
+	private static final ThreadFactory VIRTUAL = Config.THREADS.equals("virtual") ? virtualFactory() : null;
+
+	private Threads() {
+	}
+
+	/**
+	 * @return True if the receive workers run on virtual threads.
+	 */
+	public static boolean isVirtual() {
+		return VIRTUAL != null;
+	}
+
+	/**
+	 * @return Executor that runs every task on a thread of its own, a virtual
+	 *         one if they are enabled. shutdownNow() interrupts them all.
+	 *         Platform threads are created like the other threads of the
+	 *         process, as daemons if their creator is one.
+	 */
+	public static ExecutorService newExecutor() {
+		if (VIRTUAL != null) {
+			try {
+				return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+						.invoke(null, VIRTUAL);
+			} catch (ReflectiveOperationException e) {
+				System.out.println("Failed to create a virtual thread executor.");
+			}
+		}
+		return Executors.newCachedThreadPool(Thread::new);
+	}
+
+	/**
+	 * @return Factory of Thread.ofVirtual(), or null if the JVM has no virtual
+	 *         threads.
+	 */
+	private static ThreadFactory virtualFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			System.out.println("Virtual threads are not available, using platform threads.");
+			return null;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+import java.net.InetSocketAddress;
+
+/**
+ * Carries the messages of a process to its peers and drives its timer. The
+ * process does not know whether its datagrams go through a real socket
+ * (UdpTransport) or through a simulated network (SimulatedNetwork).
+ */
+public interface Transport {
+
+	/**
+	 * Start receiving. Every received message is passed to receiver and tick is
+	 * run every Config.WHEEL_TICK milliseconds of the transport clock.
+	 *
+	 * @param receiver - Called for every received message
+	 * @param tick     - Called on every tick of the retransmission timer
+	 */
+	void start(Receiver receiver, Runnable tick);
+
+	/**
+	 * Send message m to its destination. Never blocks for long, the message may
+	 * be queued.
+	 *
+	 * @param m - Message to be sent
+	 */
+	void send(Message m);
+
+	/**
+	 * @return True if sendGroup() reaches every process with one datagram.
+	 */
+	boolean isMulticast();
+
+	/**
+	 * Send message m to every process of the membership, this one included, as
+	 * one datagram. The destination of m is ignored. Only called if
+	 * isMulticast() is true.
+	 *
+	 * @param m - Message to be sent
+	 */
+	void sendGroup(Message m);
+
+	/**
+	 * @return Number of messages waiting to be sent.
+	 */
+	int getQueueSize();
+
+	/**
+	 * @return Number of datagrams sent, which may each carry several messages.
+	 */
+	long getPacketsSent();
+
+	/**
+	 * @return Current time of the transport clock in nanoseconds.
+	 */
+	long nanoTime();
+
+	/**
+	 * @return True if messages and ticks arrive on threads of the transport, so
+	 *         that the process must hand deliveries to threads of its own.
+	 *         False if everything runs on the caller of the transport, one event
+	 *         at a time.
+	 */
+	boolean isThreaded();
+
+	/**
+	 * Stop receiving and sending.
+	 */
+	void close();
+
+	/**
+	 * Handler of the received messages. A threaded transport may call it from
+	 * several threads at once, but the messages of one original sender always
+	 * come from one thread at a time, in the order they were received.
+	 */
+	interface Receiver {
+		/**
+		 * @param from - Address the message was received from
+		 * @param msg  - Received message
+		 */
+		void received(InetSocketAddress from, Message msg);
+	}
+}
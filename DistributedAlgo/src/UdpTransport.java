@@ -0,0 +1,430 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Transport over a UDP socket. Outgoing messages go through the send pipeline
+ * and a ticker thread runs the timer.
+ *
+ * Incoming datagrams are read by a listener thread that does nothing else: it
+ * copies each datagram into a pooled buffer and hands it to a worker thread,
+ * which decodes it and passes it to the receiver. Workers are chosen by the
+ * original sender of the message, so the messages of a sender are handled in
+ * the order they arrived while different senders are handled in parallel.
+ * The receiver must accept calls from several workers at once.
+ *
+ * A packet of several messages (see Coalescer) is split by the listener
+ * without copying it: each message is a slice of the packet that goes to the
+ * worker of its sender like a datagram. The packet is a Frame that every slice
+ * holds a reference to, and its buffer goes back to the pool with the last
+ * one.
+ *
+ * A worker keeps a datagram of the binary format in its buffer until the
+ * receiver returns, as a Frame of the message, so that the relays sent
+ * meanwhile forward its body instead of encoding it again. The buffer goes
+ * back to the pool once the last of them is sent.
+ *
+ * Workers run on an executor owned by the transport, see Threads. With
+ * platform threads there are Config.RECEIVE_THREADS of them, shared by the
+ * senders. With virtual threads every sender gets a worker of its own when
+ * its first datagram arrives, they cost little more than their queue.
+ *
+ * If Config.MULTICAST_GROUP is set, the transport also joins the group and a
+ * second listener reads the group datagrams. sendGroup() sends one datagram to
+ * the group from the unicast socket, so the receivers see the usual source
+ * address.
+ */
+public class UdpTransport implements Transport {
+	private DatagramChannel channel;
+	private SendPipeline sendPipeline;
+
+	// Multicast group and the channel that receives its datagrams, null if
+	// every datagram is unicast
+	private InetSocketAddress group;
+	private DatagramChannel groupChannel;
+
+	// Incoming messages are decoded by their format, see decodeMessage()
+	private MessageCodec binaryCodec;
+	private MessageCodec serializedCodec = new SerializedMessageCodec();
+
+	private BufferPool receiveBuffers;
+	private Listener listener;
+	private Listener groupListener;
+	private Receiver receiver;
+	private ExecutorService executor;
+	private ArrayList<Worker> workers = new ArrayList<Worker>();
+	private ConcurrentHashMap<Integer, Worker> senderWorkers = new ConcurrentHashMap<Integer, Worker>();
+	private Ticker ticker;
+
+	/**
+	 * @param address      - Socket IP address and port number the socket is bound
+	 *                     to
+	 * @param processCount - Number of processes of the membership
+	 */
+	public UdpTransport(InetSocketAddress address, int processCount) {
+		this.binaryCodec = new BinaryMessageCodec(processCount);
+		try {
+			if (Config.MULTICAST_GROUP.isEmpty())
+				this.channel = DatagramChannel.open();
+			else
+				this.channel = DatagramChannel.open(StandardProtocolFamily.INET);
+			this.channel.bind(address);
+		} catch (IOException e) {
+			System.out.println("Failed to create a socket!");
+		}
+		if (!Config.MULTICAST_GROUP.isEmpty())
+			joinGroup(address.getAddress());
+		this.sendPipeline = new SendPipeline(this.channel, Config.createCodec());
+		this.receiveBuffers = new BufferPool(Config.RECEIVE_BUFFERS, 65535);
+	}
+
+	@Override
+	public void start(Receiver receiver, Runnable tick) {
+		sendPipeline.start();
+
+		this.receiver = receiver;
+		this.executor = Threads.newExecutor();
+		if (!Threads.isVirtual()) {
+			for (int i = 0; i < Math.max(1, Config.RECEIVE_THREADS); i++)
+				workers.add(startWorker());
+		}
+		listener = new Listener(channel);
+		listener.start();
+		if (groupChannel != null) {
+			groupListener = new Listener(groupChannel);
+			groupListener.start();
+		}
+
+		ticker = new Ticker(tick);
+		ticker.start();
+	}
+
+	@Override
+	public void send(Message m) {
+		sendPipeline.send(m);
+	}
+
+	@Override
+	public boolean isMulticast() {
+		return group != null;
+	}
+
+	@Override
+	public void sendGroup(Message m) {
+		sendPipeline.send(new Message(m, group.getAddress(), group.getPort()));
+	}
+
+	@Override
+	public int getQueueSize() {
+		return sendPipeline.getQueueSize();
+	}
+
+	@Override
+	public long getPacketsSent() {
+		return sendPipeline.getPacketsSent();
+	}
+
+	@Override
+	public long nanoTime() {
+		return System.nanoTime();
+	}
+
+	@Override
+	public boolean isThreaded() {
+		return true;
+	}
+
+	@Override
+	public void close() {
+		listener.interrupt();
+		if (groupListener != null)
+			groupListener.interrupt();
+		executor.shutdownNow();
+		ticker.interrupt();
+		sendPipeline.interrupt();
+	}
+
+	public DatagramChannel getChannel() {
+		return channel;
+	}
+
+	public SendPipeline getSendPipeline() {
+		return sendPipeline;
+	}
+
+	/**
+	 * Join Config.MULTICAST_GROUP on the interface of the given address, or on
+	 * Config.MULTICAST_IF. Without a group every datagram is unicast.
+	 *
+	 * @param ip - Address of the process
+	 */
+	private void joinGroup(InetAddress ip) {
+		try {
+			NetworkInterface networkInterface;
+			if (!Config.MULTICAST_IF.isEmpty())
+				networkInterface = NetworkInterface.getByName(Config.MULTICAST_IF);
+			else
+				networkInterface = NetworkInterface.getByInetAddress(ip);
+			if (networkInterface == null)
+				networkInterface = NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+
+			InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(Config.MULTICAST_GROUP),
+					Config.MULTICAST_PORT);
+			this.channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+
+			// Every process of the host binds the same group port
+			this.groupChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+			this.groupChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			this.groupChannel.bind(new InetSocketAddress(Config.MULTICAST_PORT));
+			this.groupChannel.join(address.getAddress(), networkInterface);
+			this.group = address;
+		} catch (IOException e) {
+			System.out.println("Failed to join the multicast group.");
+			this.group = null;
+		}
+	}
+
+	/**
+	 * Decode a received datagram. The format is detected from the first bytes so
+	 * that processes started with -Dda.codec=serialized can be understood.
+	 *
+	 * @param in - Received datagram
+	 * @return Decoded message.
+	 */
+	public Message decodeMessage(ByteBuffer in) throws IOException {
+		if (SerializedMessageCodec.matches(in))
+			return serializedCodec.decode(in);
+		return binaryCodec.decode(in);
+	}
+
+	/**
+	 * @param in - Received datagram
+	 * @return Worker that handles the messages of the sender of the datagram.
+	 *         Datagrams whose sender cannot be read without decoding them all
+	 *         go to the first worker.
+	 */
+	private Worker workerFor(ByteBuffer in) {
+		int sender = Math.max(0, SerializedMessageCodec.matches(in) ? -1 : BinaryMessageCodec.peekSender(in));
+		if (Threads.isVirtual()) {
+			Worker worker = senderWorkers.get(sender);
+			return worker != null ? worker : senderWorkers.computeIfAbsent(sender, s -> startWorker());
+		}
+		return workers.get(sender % workers.size());
+	}
+
+	private Worker startWorker() {
+		Worker worker = new Worker(receiver);
+		executor.execute(worker);
+		return worker;
+	}
+
+	/**
+	 * Thread that listens to the incoming datagrams of a channel for the whole
+	 * duration of the process and dispatches them to the workers.
+	 */
+	public class Listener extends Thread {
+		private DatagramChannel channel;
+
+		private Listener(DatagramChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				ByteBuffer receiveBuffer;
+				try {
+					// Wait for a free buffer if the workers are behind
+					receiveBuffer = receiveBuffers.acquire();
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				try {
+					// Receive a new message
+					InetSocketAddress from = (InetSocketAddress) channel.receive(receiveBuffer);
+					receiveBuffer.flip();
+					if (Coalescer.matches(receiveBuffer))
+						split(from, receiveBuffer);
+					else
+						workerFor(receiveBuffer).dispatch(from, receiveBuffer, null);
+				} catch (ClosedChannelException e) {
+					return;
+				} catch (IOException e) {
+					receiveBuffers.release(receiveBuffer);
+					System.out.println("Unable to read socket data.");
+				}
+			}
+		}
+
+		/**
+		 * Dispatch every message of a packet, then release the packet.
+		 *
+		 * @param from   - Address the packet was received from
+		 * @param packet - Received packet
+		 */
+		private void split(InetSocketAddress from, ByteBuffer packet) {
+			// Reference of the listener, dropped once every message is dispatched
+			Frame frame = new Frame(receiveBuffers, packet, 0, packet.limit());
+			try {
+				packet.get();
+				while (packet.hasRemaining()) {
+					ByteBuffer data;
+					try {
+						data = Coalescer.next(packet);
+					} catch (IOException e) {
+						System.out.println("Unable to decode message.");
+						return;
+					}
+					frame.retain();
+					workerFor(data).dispatch(from, data, frame);
+				}
+			} finally {
+				frame.release();
+			}
+		}
+	}
+
+	/**
+	 * Task that decodes the datagrams of some senders and hands the messages to
+	 * the receiver, until it is interrupted.
+	 */
+	public class Worker implements Runnable {
+		private Receiver receiver;
+
+		// Every message of the buffers of the pool fits, as long as the packets
+		// are no larger than Config.MTU, so dispatch() rarely drops one
+		private LinkedBlockingQueue<Datagram> queue = new LinkedBlockingQueue<Datagram>(
+				Config.RECEIVE_BUFFERS * Math.max(1, Config.MTU / BinaryMessageCodec.MIN_SIZE));
+
+		private Worker(Receiver receiver) {
+			this.receiver = receiver;
+		}
+
+		/**
+		 * Queue a datagram for the worker. If the worker is behind, the datagram
+		 * is dropped and its buffer released, it is sent again by its sender.
+		 *
+		 * @param from   - Address the datagram was received from
+		 * @param data   - Received datagram, or message of a packet
+		 * @param packet - Packet the message is a slice of, with a reference for
+		 *               the message, null for a datagram of its own
+		 */
+		private void dispatch(InetSocketAddress from, ByteBuffer data, Frame packet) {
+			Datagram datagram = new Datagram(from, data, packet);
+			if (!queue.offer(datagram))
+				datagram.release();
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Datagram datagram;
+				try {
+					datagram = queue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				Message msg;
+				Frame frame = null;
+				try {
+					// Get the Message object from the data, the datagram of a message
+					// that may be relayed is kept for its relays
+					int bodyStart = BinaryMessageCodec.matches(datagram.data)
+							? BinaryMessageCodec.bodyStart(datagram.data)
+							: -1;
+					msg = decodeMessage(datagram.data);
+					if (bodyStart >= 0 && !msg.isAck() && !msg.isDigest()) {
+						if (datagram.packet != null)
+							frame = new Frame(datagram.packet, datagram.data, bodyStart, datagram.data.position());
+						else
+							frame = new Frame(receiveBuffers, datagram.data, bodyStart, datagram.data.position());
+						msg.setFrame(frame);
+					}
+				} catch (IOException | RuntimeException e) {
+					System.out.println("Unable to decode message.");
+					continue;
+				} finally {
+					if (frame == null)
+						datagram.release();
+				}
+
+				// A failure is confined to its message, the worker goes on with the
+				// next ones of its senders
+				try {
+					receiver.received(datagram.from, msg);
+				} catch (RuntimeException e) {
+					System.out.println("Failed to handle message: " + e);
+				} finally {
+					if (frame != null)
+						frame.release();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Received datagram, or message of a packet, waiting for a worker.
+	 */
+	private class Datagram {
+		private InetSocketAddress from;
+		private ByteBuffer data;
+		private Frame packet;
+
+		private Datagram(InetSocketAddress from, ByteBuffer data, Frame packet) {
+			this.from = from;
+			this.data = data;
+			this.packet = packet;
+		}
+
+		/**
+		 * Give the buffer back to the pool, or drop the reference to the packet.
+		 */
+		private void release() {
+			if (packet != null)
+				packet.release();
+			else
+				receiveBuffers.release(data);
+		}
+	}
+
+	/**
+	 * Thread that runs the timer of the process every Config.WHEEL_TICK
+	 * milliseconds.
+	 */
+	public class Ticker extends Thread {
+		private Runnable tick;
+
+		private Ticker(Runnable tick) {
+			this.tick = tick;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					Thread.sleep(Config.WHEEL_TICK);
+				} catch (InterruptedException e) {
+					return;
+				}
+				try {
+					tick.run();
+				} catch (RuntimeException e) {
+					// A failed tick must not stop the retransmissions for good
+					System.out.println("Failed to run the timer: " + e);
+				}
+			}
+		}
+	}
+}
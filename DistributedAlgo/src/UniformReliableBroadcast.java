@@ -9,9 +9,8 @@ public class UniformReliableBroadcast {
     }
 
     public void sendMessage(ArrayList<Message> messages) {
-        BestEffortBroadcast beb = new BestEffortBroadcast(p);
         try {
-            beb.sendMessage(messages);
+            p.getDisseminator().sendMessage(messages);
         } catch (IOException ex) {
             System.out.println("Unable to send messages in Uniform Reliable Broadcast.");
         }
@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Vector clock backed by an int array. Entry i counts the messages of process
+ * i + 1 that have been delivered.
+ */
+public class VectorClock implements Serializable {
+	private static final long serialVersionUID = 4519731209835412871L;
+
+	// Largest clock decoded by a codec that does not know the size of the
+	// membership
+	public static final int MAX_SIZE = 1 << 16;
+
+	private int[] values;
+
+	/**
+	 * @param size - Number of processes
+	 */
+	public VectorClock(int size) {
+		this.values = new int[size];
+	}
+
+	/**
+	 * @param other - Clock that is copied
+	 */
+	public VectorClock(VectorClock other) {
+		this.values = other.values.clone();
+	}
+
+	public int size() {
+		return values.length;
+	}
+
+	public int get(int index) {
+		return values[index];
+	}
+
+	public void set(int index, int value) {
+		values[index] = value;
+	}
+
+	/**
+	 * @param index - Entry that is increased
+	 * @param delta - Value added to the entry
+	 */
+	public void increase(int index, int delta) {
+		values[index] += delta;
+	}
+
+	/**
+	 * Set every entry that is not affected to 0, in place.
+	 *
+	 * @param affected - Entries that are kept
+	 * @return This clock.
+	 */
+	public VectorClock mask(boolean[] affected) {
+		for (int i = 0; i < values.length; i++) {
+			if (!affected[i])
+				values[i] = 0;
+		}
+		return this;
+	}
+
+	/**
+	 * @param other - Clock to compare with, entries missing from the shorter
+	 *              clock count as 0
+	 * @return True if no entry of other is greater than the same entry of this
+	 *         clock.
+	 */
+	public boolean dominates(VectorClock other) {
+		int common = Math.min(values.length, other.values.length);
+		for (int i = 0; i < common; i++) {
+			if (other.values[i] > values[i])
+				return false;
+		}
+		for (int i = common; i < other.values.length; i++) {
+			if (other.values[i] > 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Write the clock sparsely: its size, the number of non-zero entries and
+	 * (varint gap to the previous index, varint value) for each of them. A masked
+	 * clock only has the entries of its affecting processes set, so it takes a
+	 * few bytes whatever the number of processes.
+	 */
+	public void encode(ByteBuffer out) {
+		int nonZero = 0;
+		for (int value : values)
+			if (value != 0)
+				nonZero++;
+
+		BinaryMessageCodec.putVarInt(out, values.length);
+		BinaryMessageCodec.putVarInt(out, nonZero);
+		int previous = -1;
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] != 0) {
+				BinaryMessageCodec.putVarInt(out, i - previous - 1);
+				BinaryMessageCodec.putVarInt(out, values[i]);
+				previous = i;
+			}
+		}
+	}
+
+	/**
+	 * @param in      - Encoded clock
+	 * @param maxSize - Largest size accepted, the size of the membership
+	 * @return The decoded clock.
+	 * @throws IOException - If the clock is truncated or out of range
+	 */
+	public static VectorClock decode(ByteBuffer in, int maxSize) throws IOException {
+		int size = BinaryMessageCodec.getVarInt(in);
+		if (size < 0 || size > maxSize)
+			throw new IOException("Vector clock size out of range.");
+		VectorClock clock = new VectorClock(size);
+		int nonZero = BinaryMessageCodec.getVarInt(in);
+		int index = -1;
+		for (int i = 0; i < nonZero; i++) {
+			index += BinaryMessageCodec.getVarInt(in) + 1;
+			if (index < 0 || index >= clock.values.length)
+				throw new IOException("Vector clock index out of range.");
+			clock.values[index] = BinaryMessageCodec.getVarInt(in);
+		}
+		return clock;
+	}
+
+	/**
+	 * Write the entries that differ from previous: their number, then (varint
+	 * index, zigzag varint difference) for each of them.
+	 */
+	public void encodeDelta(ByteBuffer out, VectorClock previous) {
+		int changed = 0;
+		for (int i = 0; i < values.length; i++)
+			if (values[i] != previous.values[i])
+				changed++;
+
+		BinaryMessageCodec.putVarInt(out, changed);
+		for (int i = 0; i < values.length; i++) {
+			int diff = values[i] - previous.values[i];
+			if (diff != 0) {
+				BinaryMessageCodec.putVarInt(out, i);
+				BinaryMessageCodec.putVarInt(out, (diff << 1) ^ (diff >> 31));
+			}
+		}
+	}
+
+	public static VectorClock decodeDelta(ByteBuffer in, VectorClock previous) throws IOException {
+		VectorClock clock = new VectorClock(previous);
+		int changed = BinaryMessageCodec.getVarInt(in);
+		for (int i = 0; i < changed; i++) {
+			int index = BinaryMessageCodec.getVarInt(in);
+			if (index < 0 || index >= clock.values.length)
+				throw new IOException("Vector clock index out of range.");
+			int zigzag = BinaryMessageCodec.getVarInt(in);
+			clock.values[index] += (zigzag >>> 1) ^ -(zigzag & 1);
+		}
+		return clock;
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(values);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof VectorClock && Arrays.equals(values, ((VectorClock) o).values);
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(values);
+	}
+}
@@ -0,0 +1,84 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Thread that runs the code every received message goes through, on
+ * messages of its own, while the process waits for USR2: encoding a batch with
+ * vector clocks of the size of the membership, decoding it, relaying it from
+ * its frame, unbatching it and comparing the clocks. The JIT compiles them
+ * before the first broadcast instead of during it. The process itself is not
+ * touched.
+ */
+public class Warmup extends Thread {
+	private int processCount;
+
+	// Keeps the results alive so that the work is not optimized away
+	private long checksum = 0;
+
+	/**
+	 * @param processCount - Number of processes of the membership
+	 */
+	public Warmup(int processCount) {
+		this.processCount = processCount;
+	}
+
+	@Override
+	public void run() {
+		try {
+			InetAddress localhost = InetAddress.getLoopbackAddress();
+			int count = Math.min(Config.BATCH_SIZE, BinaryMessageCodec.batchLimit(processCount, Config.MTU));
+			ArrayList<VectorClock> clocks = new ArrayList<VectorClock>();
+			for (int i = 0; i < count; i++) {
+				VectorClock clock = new VectorClock(processCount);
+				for (int j = 1; j < processCount; j += 2)
+					clock.set(j, 1000 + i);
+				clocks.add(clock);
+			}
+			Message m = new Message("1000", 11002, localhost, 11001, localhost, 1000, false, true, 1, null,
+					clocks.get(0));
+			m.setBatch(clocks);
+
+			MessageCodec codec = Config.createCodec();
+			BinaryMessageCodec relayCodec = new BinaryMessageCodec();
+			BufferPool pool = new BufferPool(1, SendPipeline.MAX_DATAGRAM);
+			ByteBuffer out = ByteBuffer.allocateDirect(SendPipeline.MAX_DATAGRAM);
+			VectorClock processVC = new VectorClock(processCount);
+
+			for (int i = 0; i < Config.WARMUP; i += count) {
+				// Received datagram
+				ByteBuffer in = pool.acquire();
+				relayCodec.encode(m, in);
+				in.flip();
+				int bodyStart = BinaryMessageCodec.bodyStart(in);
+				Message received = relayCodec.decode(in);
+				Frame frame = new Frame(pool, in, bodyStart, in.position());
+
+				// Its relay
+				Message relay = new Message(received.getM(), 11003, localhost, 11002, localhost, received.getId(),
+						false, false, received.getSender(), null, received.getVectorClock());
+				relay.copyBatch(received);
+				out.clear();
+				relayCodec.encodeRelay(relay, frame, out);
+				frame.release();
+
+				// A message of this process, in the configured format
+				out.clear();
+				codec.encode(m, out);
+				checksum += out.position();
+
+				for (Message single : received.unbatch()) {
+					if (processVC.dominates(single.getVectorClock()))
+						checksum++;
+				}
+			}
+		} catch (IOException | InterruptedException e) {
+			System.out.println("Failed to warm up.");
+		}
+	}
+
+	public long getChecksum() {
+		return checksum;
+	}
+}
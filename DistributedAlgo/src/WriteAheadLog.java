@@ -0,0 +1,521 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Append-only log of the broadcasts and deliveries of a process, from which a
+ * restarted process rebuilds its state.
+ *
+ * Records are written into memory mapped segments, da_proc_<id>.wal.<n> of
+ * Config.WAL_SEGMENT_SIZE bytes each. Broadcasts and deliveries are appended
+ * in the order their lines of the output are logged:
+ *
+ * broadcast - first ID and number of messages of a batch of this process, and
+ *             the vector clock they were broadcast with
+ * delivery  - sender, first ID and number of a run of delivered messages
+ * received  - a message of another process and its vector clock, appended
+ *             when its first copy arrives, before it is acknowledged
+ *
+ * A record survives a crash of the process as soon as it is appended. A
+ * background thread forces the segments to disk every Config.WAL_SYNC_MS
+ * milliseconds (group commit), for crashes of the machine.
+ *
+ * Every Config.WAL_CHECKPOINT records the thread writes a checkpoint,
+ * da_proc_<id>.ckpt: the delivery cursors, the last broadcast, the size of
+ * the output at that point and where the log continues. Recovery reads the
+ * checkpoint and replays the records after it only, and the segments that
+ * are not needed anymore are deleted. The broadcasts and received messages
+ * that were not delivered yet are replayed as well, however old, and
+ * recover() returns them so that they can be sent again.
+ */
+public class WriteAheadLog extends Thread {
+	private static final int BROADCAST = 1;
+	private static final int DELIVERY = 2;
+	private static final int RECEIVED = 3;
+
+	private String prefix;
+	private int processId;
+	private int n;
+	private LogWriter logWriter;
+
+	// Current segment and the next free byte in it
+	private int segment = 0;
+	private FileChannel channel;
+	private MappedByteBuffer region;
+
+	// Segments that were filled and not forced yet
+	private ArrayList<MappedByteBuffer> retired = new ArrayList<MappedByteBuffer>();
+	private boolean dirty = false;
+
+	// State after the last record: messages delivered of each sender, last
+	// broadcast of this process, bytes of the output
+	private int[] cursors;
+	private int lastBroadcast = 0;
+	private long outputBytes = 0;
+	private volatile int records = 0;
+
+	// Broadcast and received records whose messages have not all been
+	// delivered, in the order of the log
+	private ArrayDeque<Record> undelivered = new ArrayDeque<Record>();
+
+	private volatile boolean closed = false;
+
+	/**
+	 * @param processId - Process ID, names the files
+	 * @param n         - Number of processes
+	 */
+	public WriteAheadLog(int processId, int n) {
+		this.prefix = "da_proc_" + processId;
+		this.processId = processId;
+		this.n = n;
+		this.cursors = new int[n];
+	}
+
+	/**
+	 * Delete the log of an earlier run, for a process that starts from scratch.
+	 */
+	public void reset() throws IOException {
+		for (int s : segments())
+			new File(segmentName(s)).delete();
+		new File(prefix + ".ckpt").delete();
+		open(0, 0);
+	}
+
+	/**
+	 * Rebuild the state of the process from the checkpoint and the records
+	 * after it. The lines of the output logged after the checkpoint are
+	 * returned in out.
+	 *
+	 * @param out - Lines of the output after Recovery.getOutputBytes()
+	 * @return Recovered state.
+	 */
+	public Recovery recover(ArrayList<String> out) throws IOException {
+		long replayFrom = 0;
+		long checkpoint = 0;
+		long checkpointOutput = 0;
+
+		File file = new File(prefix + ".ckpt");
+		if (file.exists()) {
+			try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+				if (in.readInt() != n)
+					throw new IOException("Checkpoint of another membership");
+				checkpoint = in.readLong();
+				replayFrom = in.readLong();
+				lastBroadcast = in.readInt();
+				checkpointOutput = in.readLong();
+				for (int i = 0; i < n; i++)
+					cursors[i] = in.readInt();
+			}
+		}
+		outputBytes = checkpointOutput;
+
+		// Replay the segments from the oldest record that is still needed
+		long position = replayFrom;
+		for (int s : segments()) {
+			if (s < (int) (replayFrom >>> 32))
+				continue;
+			try (FileChannel segmentChannel = FileChannel.open(Paths.get(segmentName(s)), StandardOpenOption.READ)) {
+				MappedByteBuffer in = segmentChannel.map(FileChannel.MapMode.READ_ONLY, 0, segmentChannel.size());
+				if (s == (int) (replayFrom >>> 32))
+					in.position((int) replayFrom);
+				while (true) {
+					position = ((long) s << 32) | in.position();
+					if (!replay(in, position, position >= checkpoint, out))
+						break;
+				}
+			}
+		}
+
+		// Keep the records whose messages are still not delivered
+		ArrayDeque<Record> replayed = undelivered;
+		undelivered = new ArrayDeque<Record>();
+		for (Record r : replayed) {
+			if (!isDelivered(r))
+				undelivered.add(r);
+		}
+
+		// Append after the last complete record, over what a crash may have left
+		// of the next one
+		open((int) (position >>> 32), (int) position);
+		int torn = Math.min(region.remaining(), 5 * Integer.BYTES + n * Integer.BYTES);
+		for (int i = 0; i < torn; i++)
+			region.put(region.position() + i, (byte) 0);
+		return new Recovery(cursors.clone(), lastBroadcast, checkpointOutput, new ArrayList<Record>(undelivered));
+	}
+
+	/**
+	 * Replay one record.
+	 *
+	 * @param in    - Segment positioned at the record
+	 * @param after - The record is after the checkpoint, so the checkpoint does
+	 *              not include it yet
+	 * @return False at the end of the log.
+	 */
+	private boolean replay(MappedByteBuffer in, long position, boolean after, ArrayList<String> out) {
+		try {
+			int start = in.position();
+			int size = in.getInt();
+			if (size <= 0 || size > in.remaining())
+				return false;
+			int type = in.getInt();
+			int sender = in.getInt();
+			int firstId = in.getInt();
+			int count = in.getInt();
+
+			if (type == DELIVERY) {
+				if (after) {
+					cursors[sender - 1] = Math.max(cursors[sender - 1], firstId + count - 1);
+					for (int id = firstId; id < firstId + count; id++)
+						output(out, "d " + sender + " " + id + "\n");
+				}
+			} else {
+				VectorClock clock = new VectorClock(n);
+				for (int i = 0; i < n; i++)
+					clock.set(i, in.getInt());
+				undelivered.add(new Record(position, sender, firstId, count, clock));
+				if (type == BROADCAST && after) {
+					lastBroadcast = Math.max(lastBroadcast, firstId + count - 1);
+					for (int id = firstId; id < firstId + count; id++)
+						output(out, "b " + id + "\n");
+				}
+			}
+			in.position(start + Integer.BYTES + size);
+			return true;
+		} catch (BufferUnderflowException e) {
+			return false;
+		}
+	}
+
+	private void output(ArrayList<String> out, String l) {
+		out.add(l);
+		outputBytes += l.length();
+	}
+
+	/**
+	 * Start the group commit and checkpoints. Checkpoints wait until the output
+	 * has been written up to them.
+	 *
+	 * @param logWriter - Writer of the output of the process
+	 */
+	public void start(LogWriter logWriter) {
+		this.logWriter = logWriter;
+		start();
+	}
+
+	/**
+	 * Append the broadcast of count messages of this process, from firstId.
+	 *
+	 * @param clock - Vector clock the messages were broadcast with
+	 */
+	public synchronized void broadcast(int firstId, int count, VectorClock clock) {
+		append(BROADCAST, processId, firstId, count, clock);
+		lastBroadcast = firstId + count - 1;
+		for (int id = firstId; id < firstId + count; id++)
+			outputBytes += 3 + Integer.toString(id).length();
+	}
+
+	/**
+	 * Append a message of another process that was received for the first time,
+	 * before it is acknowledged: once acknowledged, nobody sends it again.
+	 * Messages that were delivered already are not appended.
+	 *
+	 * @param m - Single received message
+	 */
+	public synchronized void received(Message m) {
+		if (m.getId() > cursors[m.getSender() - 1])
+			append(RECEIVED, m.getSender(), m.getId(), 1, m.getVectorClock());
+	}
+
+	/**
+	 * Append the delivery of count messages of sender, from firstId.
+	 */
+	public synchronized void delivered(int sender, int firstId, int count) {
+		append(DELIVERY, sender, firstId, count, null);
+		cursors[sender - 1] = firstId + count - 1;
+		int senderLength = Integer.toString(sender).length();
+		for (int id = firstId; id < firstId + count; id++)
+			outputBytes += 4 + senderLength + Integer.toString(id).length();
+
+		// The oldest records are not needed anymore once their messages have
+		// been delivered
+		while (!undelivered.isEmpty() && isDelivered(undelivered.peek()))
+			undelivered.poll();
+	}
+
+	/**
+	 * Append a record. Its size is written last, so that a record cut by a
+	 * crash is not replayed.
+	 *
+	 * @param clock - Vector clock of the messages, null for a delivery
+	 */
+	private void append(int type, int sender, int firstId, int count, VectorClock clock) {
+		ensure(5 * Integer.BYTES + (clock == null ? 0 : n * Integer.BYTES));
+		long position = position();
+		int start = region.position();
+		region.position(start + Integer.BYTES);
+		region.putInt(type).putInt(sender).putInt(firstId).putInt(count);
+		if (clock != null) {
+			for (int i = 0; i < n; i++)
+				region.putInt(clock.get(i));
+			undelivered.add(new Record(position, sender, firstId, count, new VectorClock(clock)));
+		}
+		region.putInt(start, region.position() - start - Integer.BYTES);
+		dirty = true;
+		records++;
+	}
+
+	private boolean isDelivered(Record r) {
+		return r.getFirstId() + r.getCount() - 1 <= cursors[r.getSender() - 1];
+	}
+
+	/**
+	 * Move to the next segment if the current one has no room for bytes more.
+	 */
+	private void ensure(int bytes) {
+		if (region.remaining() >= bytes + Integer.BYTES)
+			return;
+		retired.add(region);
+		try {
+			channel.close();
+			open(segment + 1, 0);
+		} catch (IOException e) {
+			System.out.println("Failed to extend the write-ahead log.");
+		}
+	}
+	private void open(int s, int offset) throws IOException {
+		segment = s;
+		channel = FileChannel.open(Paths.get(segmentName(s)), StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		region = channel.map(FileChannel.MapMode.READ_WRITE, 0, Config.WAL_SEGMENT_SIZE);
+		region.position(offset);
+	}
+
+	private long position() {
+		return ((long) segment << 32) | region.position();
+	}
+
+	@Override
+	public void run() {
+		while (!closed) {
+			try {
+				Thread.sleep(Config.WAL_SYNC_MS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			sync();
+			if (records >= Config.WAL_CHECKPOINT)
+				checkpoint();
+		}
+	}
+
+	/**
+	 * Force the appended records to disk. The regions are forced outside of the
+	 * lock, appends go on meanwhile.
+	 */
+	private void sync() {
+		ArrayList<MappedByteBuffer> regions;
+		synchronized (this) {
+			if (!dirty && retired.isEmpty())
+				return;
+			regions = new ArrayList<MappedByteBuffer>(retired);
+			regions.add(region);
+			retired.clear();
+			dirty = false;
+		}
+		for (MappedByteBuffer r : regions)
+			r.force();
+	}
+
+	/**
+	 * Write a checkpoint of the current state if the output has been written up
+	 * to it, and delete the segments that recovery will not read anymore.
+	 */
+	private void checkpoint() {
+		long position;
+		long replayFrom;
+		int[] snapshot;
+		int broadcast;
+		long output;
+		synchronized (this) {
+			position = position();
+			replayFrom = undelivered.isEmpty() ? position : undelivered.peek().getPosition();
+			snapshot = cursors.clone();
+			broadcast = lastBroadcast;
+			output = outputBytes;
+		}
+		if (logWriter.getWritten() < output)
+			return;
+		sync();
+
+		File temp = new File(prefix + ".ckpt.tmp");
+		try (FileOutputStream file = new FileOutputStream(temp);
+				DataOutputStream out = new DataOutputStream(file)) {
+			out.writeInt(n);
+			out.writeLong(position);
+			out.writeLong(replayFrom);
+			out.writeInt(broadcast);
+			out.writeLong(output);
+			for (int i = 0; i < n; i++)
+				out.writeInt(snapshot[i]);
+			out.flush();
+			file.getFD().sync();
+		} catch (IOException e) {
+			System.out.println("Failed to write the checkpoint.");
+			return;
+		}
+
+		try {
+			Files.move(temp.toPath(), Paths.get(prefix + ".ckpt"), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			System.out.println("Failed to write the checkpoint.");
+			return;
+		}
+		synchronized (this) {
+			records = 0;
+		}
+
+		for (int s : segments()) {
+			if (s < (int) (replayFrom >>> 32))
+				new File(segmentName(s)).delete();
+		}
+	}
+
+	/**
+	 * Force the log and write a last checkpoint. Call after the log writer has
+	 * been closed, so that the checkpoint covers the whole output.
+	 */
+	public void close() {
+		closed = true;
+		this.interrupt();
+		try {
+			this.join();
+		} catch (InterruptedException e) {
+			System.out.println("Interrupted while closing the write-ahead log.");
+		}
+		sync();
+		if (logWriter != null)
+			checkpoint();
+	}
+
+	/**
+	 * @return Numbers of the segments on disk, in increasing order.
+	 */
+	private ArrayList<Integer> segments() {
+		ArrayList<Integer> found = new ArrayList<Integer>();
+		File[] files = new File(".").listFiles();
+		if (files == null)
+			return found;
+		for (File f : files) {
+			String name = f.getName();
+			if (name.startsWith(prefix + ".wal.") && name.substring(prefix.length() + 5).matches("\\d+"))
+				found.add(Integer.parseInt(name.substring(prefix.length() + 5)));
+		}
+		found.sort(null);
+		return found;
+	}
+
+	private String segmentName(int s) {
+		return prefix + ".wal." + s;
+	}
+
+	/**
+	 * Broadcast or received messages of the log.
+	 */
+	public static class Record {
+		private long position;
+		private int sender;
+		private int firstId;
+		private int count;
+		private VectorClock clock;
+
+		private Record(long position, int sender, int firstId, int count, VectorClock clock) {
+			this.position = position;
+			this.sender = sender;
+			this.firstId = firstId;
+			this.count = count;
+			this.clock = clock;
+		}
+
+		public long getPosition() {
+			return position;
+		}
+
+		public int getSender() {
+			return sender;
+		}
+
+		public int getFirstId() {
+			return firstId;
+		}
+
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * @return Vector clock of the messages: as received for the messages of
+		 *         other processes, before masking for the broadcasts of this
+		 *         process.
+		 */
+		public VectorClock getClock() {
+			return clock;
+		}
+	}
+
+	/**
+	 * State of a process rebuilt from its log.
+	 */
+	public static class Recovery {
+		private int[] delivered;
+		private int lastBroadcast;
+		private long outputBytes;
+		private ArrayList<Record> undelivered;
+
+		private Recovery(int[] delivered, int lastBroadcast, long outputBytes, ArrayList<Record> undelivered) {
+			this.delivered = delivered;
+			this.lastBroadcast = lastBroadcast;
+			this.outputBytes = outputBytes;
+			this.undelivered = undelivered;
+		}
+
+		/**
+		 * @return Number of messages delivered of each sender, by index.
+		 */
+		public int[] getDelivered() {
+			return delivered;
+		}
+
+		public int getLastBroadcast() {
+			return lastBroadcast;
+		}
+
+		/**
+		 * @return Size of the output the checkpoint covers. The output is cut
+		 *         there and the replayed lines are logged again.
+		 */
+		public long getOutputBytes() {
+			return outputBytes;
+		}
+
+		/**
+		 * @return Broadcasts of this process and received messages that it had
+		 *         not delivered.
+		 */
+		public ArrayList<Record> getUndelivered() {
+			return undelivered;
+		}
+	}
+}